@@ -0,0 +1,27 @@
+/*
+ * Copyright (c) 2016 Threema GmbH / SaltyRTC Contributors
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+
+package org.saltyrtc.chunkedDc.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("org.saltyrtc.chunkedDc.DuplicateDropped")
+@Label("Duplicate Dropped")
+@Description("An Unchunker dropped a repeated or late chunk")
+@Category({"SaltyRTC", "Chunked DC"})
+class DuplicateDroppedEvent extends Event {
+    @Label("Message Id")
+    long id;
+
+    @Label("Serial")
+    long serial;
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2016 Threema GmbH / SaltyRTC Contributors
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+
+package org.saltyrtc.chunkedDc.jfr;
+
+import org.saltyrtc.chunkedDc.Instrumentation;
+
+/**
+ * Emits Java Flight Recorder events for the chunk lifecycle.
+ *
+ * Events are only created while they are enabled in a recording. Enable
+ * them with `jdk.jfr.Recording.enable("org.saltyrtc.chunkedDc.*")` or in
+ * a JFR settings file.
+ *
+ * The lock wait is measured on every `Unchunker.add`, so lock wait events
+ * are only emitted for waits of at least a threshold.
+ */
+public class JfrInstrumentation extends Instrumentation {
+
+    /**
+     * Default minimum lock wait to emit an event for (1 ms).
+     */
+    public static final long DEFAULT_LOCK_WAIT_THRESHOLD = 1000 * 1000;
+
+    private final long lockWaitThreshold;
+
+    /**
+     * Create a JfrInstrumentation instance with the default lock wait threshold.
+     */
+    public JfrInstrumentation() {
+        this(DEFAULT_LOCK_WAIT_THRESHOLD);
+    }
+
+    /**
+     * Create a JfrInstrumentation instance.
+     *
+     * @param lockWaitThreshold Minimum lock wait in nanoseconds to emit an event for.
+     * @throws IllegalArgumentException if the threshold is negative
+     */
+    public JfrInstrumentation(long lockWaitThreshold) {
+        if (lockWaitThreshold < 0) {
+            throw new IllegalArgumentException("Threshold may not be negative");
+        }
+        this.lockWaitThreshold = lockWaitThreshold;
+    }
+
+    /**
+     * Install a JfrInstrumentation instance with the default lock wait threshold.
+     */
+    public static void install() {
+        Instrumentation.install(new JfrInstrumentation());
+    }
+
+    @Override
+    public void messageChunked(long id, int length, int chunks) {
+        final MessageChunkedEvent event = new MessageChunkedEvent();
+        if (event.isEnabled()) {
+            event.id = id;
+            event.length = length;
+            event.chunks = chunks;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void chunkReceived(long id, long serial, int length, boolean parity) {
+        final ChunkReceivedEvent event = new ChunkReceivedEvent();
+        if (event.isEnabled()) {
+            event.id = id;
+            event.serial = serial;
+            event.length = length;
+            event.parity = parity;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void duplicateDropped(long id, long serial) {
+        final DuplicateDroppedEvent event = new DuplicateDroppedEvent();
+        if (event.isEnabled()) {
+            event.id = id;
+            event.serial = serial;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void messageCompleted(long id, long nanos, long chunks, int length) {
+        final MessageCompletedEvent event = new MessageCompletedEvent();
+        if (event.isEnabled()) {
+            event.id = id;
+            event.reassemblyTime = nanos;
+            event.chunks = chunks;
+            event.length = length;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void messageExpired(long id, int chunks) {
+        final MessageExpiredEvent event = new MessageExpiredEvent();
+        if (event.isEnabled()) {
+            event.id = id;
+            event.chunks = chunks;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void lockWait(long nanos) {
+        if (nanos < this.lockWaitThreshold) {
+            return;
+        }
+        final LockWaitEvent event = new LockWaitEvent();
+        if (event.isEnabled()) {
+            event.waitTime = nanos;
+            event.commit();
+        }
+    }
+
+}
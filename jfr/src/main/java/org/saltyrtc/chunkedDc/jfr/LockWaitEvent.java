@@ -0,0 +1,26 @@
+/*
+ * Copyright (c) 2016 Threema GmbH / SaltyRTC Contributors
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+
+package org.saltyrtc.chunkedDc.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+@Name("org.saltyrtc.chunkedDc.LockWait")
+@Label("Lock Wait")
+@Description("A thread waited for the lock of an Unchunker in add")
+@Category({"SaltyRTC", "Chunked DC"})
+class LockWaitEvent extends Event {
+    @Label("Wait Time")
+    @Timespan
+    long waitTime;
+}
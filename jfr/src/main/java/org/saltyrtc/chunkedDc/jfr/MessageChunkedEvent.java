@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) 2016 Threema GmbH / SaltyRTC Contributors
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+
+package org.saltyrtc.chunkedDc.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("org.saltyrtc.chunkedDc.MessageChunked")
+@Label("Message Chunked")
+@Description("A Chunker started chunking a message")
+@Category({"SaltyRTC", "Chunked DC"})
+class MessageChunkedEvent extends Event {
+    @Label("Message Id")
+    long id;
+
+    @Label("Length")
+    @DataAmount
+    int length;
+
+    @Label("Chunks")
+    int chunks;
+}
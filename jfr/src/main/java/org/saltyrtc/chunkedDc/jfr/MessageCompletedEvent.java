@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2016 Threema GmbH / SaltyRTC Contributors
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+
+package org.saltyrtc.chunkedDc.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+@Name("org.saltyrtc.chunkedDc.MessageCompleted")
+@Label("Message Completed")
+@Description("An Unchunker completed a message")
+@Category({"SaltyRTC", "Chunked DC"})
+class MessageCompletedEvent extends Event {
+    @Label("Message Id")
+    long id;
+
+    @Label("Reassembly Time")
+    @Timespan
+    long reassemblyTime;
+
+    @Label("Chunks")
+    long chunks;
+
+    @Label("Length")
+    @DataAmount
+    int length;
+}
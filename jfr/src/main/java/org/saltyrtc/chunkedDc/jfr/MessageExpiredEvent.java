@@ -0,0 +1,27 @@
+/*
+ * Copyright (c) 2016 Threema GmbH / SaltyRTC Contributors
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+
+package org.saltyrtc.chunkedDc.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("org.saltyrtc.chunkedDc.MessageExpired")
+@Label("Message Expired")
+@Description("An Unchunker removed an incomplete message in gc")
+@Category({"SaltyRTC", "Chunked DC"})
+class MessageExpiredEvent extends Event {
+    @Label("Message Id")
+    long id;
+
+    @Label("Chunks")
+    int chunks;
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2016 Threema GmbH / SaltyRTC Contributors
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+
+package org.saltyrtc.chunkedDc.jfr.tests;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.After;
+import org.junit.Test;
+import org.saltyrtc.chunkedDc.Chunker;
+import org.saltyrtc.chunkedDc.Instrumentation;
+import org.saltyrtc.chunkedDc.Unchunker;
+import org.saltyrtc.chunkedDc.jfr.JfrInstrumentation;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class JfrInstrumentationTest {
+
+    @After
+    public void tearDown() {
+        Instrumentation.install(null);
+    }
+
+    @Test
+    public void testEvents() throws IOException, InterruptedException {
+        Instrumentation.install(new JfrInstrumentation(0));
+        final Path file = Files.createTempFile("chunked-dc", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("org.saltyrtc.chunkedDc.MessageChunked");
+            recording.enable("org.saltyrtc.chunkedDc.ChunkReceived");
+            recording.enable("org.saltyrtc.chunkedDc.DuplicateDropped");
+            recording.enable("org.saltyrtc.chunkedDc.MessageCompleted");
+            recording.enable("org.saltyrtc.chunkedDc.MessageExpired");
+            recording.enable("org.saltyrtc.chunkedDc.LockWait");
+            recording.start();
+
+            final Chunker chunker = new Chunker(1, ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 5 }), 11);
+            final Unchunker unchunker = new Unchunker();
+            final ByteBuffer first = chunker.next();
+            unchunker.add(first.duplicate());
+            unchunker.add(first.duplicate());
+            unchunker.add(chunker.next());
+            unchunker.add(chunker.next());
+            unchunker.add(ByteBuffer.wrap(new byte[] { 0, 0,0,0,2, 0,0,0,0, 7 }));
+            Thread.sleep(20);
+            unchunker.gc(10);
+
+            recording.stop();
+            recording.dump(file);
+        }
+
+        final Map<String, Integer> counts = new HashMap<>();
+        RecordedEvent completed = null;
+        for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+            final String name = event.getEventType().getName();
+            counts.merge(name, 1, Integer::sum);
+            if (name.equals("org.saltyrtc.chunkedDc.MessageCompleted")) {
+                completed = event;
+            }
+        }
+        Files.delete(file);
+
+        assertEquals(Integer.valueOf(1), counts.get("org.saltyrtc.chunkedDc.MessageChunked"));
+        assertEquals(Integer.valueOf(4), counts.get("org.saltyrtc.chunkedDc.ChunkReceived"));
+        assertEquals(Integer.valueOf(1), counts.get("org.saltyrtc.chunkedDc.DuplicateDropped"));
+        assertEquals(Integer.valueOf(1), counts.get("org.saltyrtc.chunkedDc.MessageExpired"));
+        assertEquals(Integer.valueOf(5), counts.get("org.saltyrtc.chunkedDc.LockWait"));
+        assertEquals(3, completed.getLong("chunks"));
+        assertEquals(5, completed.getInt("length"));
+        assertTrue(completed.getDuration("reassemblyTime").toNanos() >= 0);
+    }
+
+    /**
+     * Only lock waits of at least the threshold are recorded.
+     */
+    @Test
+    public void testLockWaitThreshold() throws IOException, InterruptedException {
+        JfrInstrumentation.install();
+        final Path file = Files.createTempFile("chunked-dc", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("org.saltyrtc.chunkedDc.LockWait");
+            recording.start();
+
+            final Unchunker unchunker = new Unchunker();
+            for (int i = 0; i < 10; i++) {
+                unchunker.add(ByteBuffer.wrap(new byte[] { 0, 0,0,0,1, 0,0,0,(byte) i, 7 }));
+            }
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    unchunker.add(ByteBuffer.wrap(new byte[] { 0, 0,0,0,2, 0,0,0,0, 7 }));
+                }
+            });
+            synchronized (unchunker) {
+                thread.start();
+                Thread.sleep(20);
+            }
+            thread.join();
+
+            recording.stop();
+            recording.dump(file);
+        }
+
+        final List<RecordedEvent> events = new ArrayList<>();
+        for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+            if (event.getEventType().getName().equals("org.saltyrtc.chunkedDc.LockWait")) {
+                events.add(event);
+            }
+        }
+        Files.delete(file);
+        assertEquals(1, events.size());
+        assertTrue(events.get(0).getDuration("waitTime").toMillis() >= 10);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeLockWaitThreshold() {
+        new JfrInstrumentation(-1);
+    }
+
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2016 Threema GmbH / SaltyRTC Contributors
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+
+package org.saltyrtc.chunkedDc;
+
+import java.util.ArrayDeque;
+
+/**
+ * A pool of byte arrays that can be shared by multiple Unchunker instances.
+ *
+ * Arrays are handed out in power-of-two lengths. Arrays longer than the
+ * maximum pooled length are allocated and dropped as usual.
+ */
+public class BufferPool {
+
+    private static final int MIN_SHIFT = 10;
+
+    private final ArrayDeque<byte[]>[] free;
+    private final int maxLength;
+    private final long maxPooledBytes;
+    private long pooledBytes = 0;
+
+    /**
+     * Create a BufferPool instance.
+     *
+     * @param maxLength Maximum length of pooled arrays, rounded up to a power of two.
+     * @param maxPooledBytes Maximum number of bytes kept in the pool.
+     * @throws IllegalArgumentException if a limit is not positive or too large
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(int maxLength, long maxPooledBytes) {
+        if (maxLength <= 0 || maxLength > (1 << 30)) {
+            throw new IllegalArgumentException("Maximum length must be between 1 and 2**30");
+        }
+        if (maxPooledBytes <= 0) {
+            throw new IllegalArgumentException("Maximum pooled bytes must be positive");
+        }
+        final int classes = Math.max(0, sizeClass(maxLength)) + 1;
+        this.free = new ArrayDeque[classes];
+        for (int i = 0; i < classes; i++) {
+            this.free[i] = new ArrayDeque<>();
+        }
+        this.maxLength = 1 << (classes - 1 + MIN_SHIFT);
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+    /**
+     * Return the size class of the specified length.
+     */
+    private static int sizeClass(int length) {
+        if (length <= (1 << MIN_SHIFT)) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(length - 1) - MIN_SHIFT;
+    }
+
+    /**
+     * Return the length of the array `acquire` returns for the specified length.
+     */
+    int capacity(int length) {
+        return length > this.maxLength ? length : 1 << (sizeClass(length) + MIN_SHIFT);
+    }
+
+    /**
+     * Return an array of at least the specified length.
+     *
+     * The content of the array is undefined.
+     */
+    public synchronized byte[] acquire(int length) {
+        if (length > this.maxLength) {
+            return new byte[length];
+        }
+        final int sizeClass = sizeClass(length);
+        final byte[] buf = this.free[sizeClass].poll();
+        if (buf == null) {
+            return new byte[1 << (sizeClass + MIN_SHIFT)];
+        }
+        this.pooledBytes -= buf.length;
+        return buf;
+    }
+
+    /**
+     * Return an array to the pool.
+     *
+     * Arrays that were not handed out by `acquire` or that would exceed
+     * the maximum number of pooled bytes are dropped.
+     */
+    public synchronized void release(byte[] buf) {
+        final int length = buf.length;
+        if (length > this.maxLength
+                || length < (1 << MIN_SHIFT)
+                || Integer.bitCount(length) != 1
+                || this.pooledBytes + length > this.maxPooledBytes) {
+            return;
+        }
+        this.free[sizeClass(length)].push(buf);
+        this.pooledBytes += length;
+    }
+
+    /**
+     * Return the number of bytes currently kept in the pool.
+     */
+    public synchronized long getPooledBytes() {
+        return this.pooledBytes;
+    }
+
+}
@@ -16,6 +16,8 @@ import java.nio.ByteBuffer;
 public class Chunk implements Comparable<Chunk> {
 
     private boolean endOfMessage;
+    private boolean parity;
+    private boolean batch;
     private long id;
     private long serial;
     private byte[] data;
@@ -31,7 +33,9 @@ public class Chunk implements Comparable<Chunk> {
 
         // Read header
         final byte options = bytes.get();
-        this.endOfMessage = (options & 0x01) == 1;
+        this.endOfMessage = (options & Common.OPTION_END_OF_MESSAGE) != 0;
+        this.parity = (options & Common.OPTION_PARITY) != 0;
+        this.batch = (options & Common.OPTION_BATCH) != 0;
         this.id = UnsignedHelper.readUnsignedInt(bytes.getInt());
         this.serial = UnsignedHelper.readUnsignedInt(bytes.getInt());
 
@@ -44,6 +48,20 @@ public class Chunk implements Comparable<Chunk> {
         return endOfMessage;
     }
 
+    /**
+     * Whether this is a parity chunk for forward error correction.
+     */
+    public boolean isParity() {
+        return parity;
+    }
+
+    /**
+     * Whether this chunk contains a batch of small messages.
+     */
+    public boolean isBatch() {
+        return batch;
+    }
+
     public long getId() {
         return id;
     }
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2016 Threema GmbH / SaltyRTC Contributors
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+
+package org.saltyrtc.chunkedDc;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A range of consecutive data chunks of a message, see `Chunker.range()`.
+ *
+ * A range can be split into two halves with `trySplit`, so disjoint ranges
+ * of a large message can be produced by multiple threads or sent over
+ * multiple channels in parallel. A single range must not be shared
+ * between threads.
+ */
+public class ChunkRange implements Iterator<ByteBuffer> {
+
+    private final Chunker chunker;
+    private final ByteBuffer[] views;
+    private int from;
+    private final int to;
+
+    ChunkRange(Chunker chunker, ByteBuffer[] views, int from, int to) {
+        this.chunker = chunker;
+        this.views = views;
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * Return the serial of the next chunk.
+     */
+    public int getFrom() {
+        return this.from;
+    }
+
+    /**
+     * Return the serial behind the last chunk.
+     */
+    public int getTo() {
+        return this.to;
+    }
+
+    /**
+     * Return the number of remaining chunks.
+     */
+    public int size() {
+        return this.to - this.from;
+    }
+
+    /**
+     * Whether there are more chunks available.
+     */
+    @Override
+    public boolean hasNext() {
+        return this.from < this.to;
+    }
+
+    /**
+     * Return the next chunk.
+     *
+     * @throws NoSuchElementException if there are no chunks remaining
+     */
+    @Override
+    public ByteBuffer next() {
+        if (!this.hasNext()) {
+            throw new NoSuchElementException();
+        }
+        final int serial = this.from++;
+        final ByteBuffer chunk = ByteBuffer.allocate(this.chunker.chunkLength(serial) + Common.HEADER_LENGTH);
+        this.chunker.writeChunk(this.views, serial, chunk);
+        return (ByteBuffer) chunk.flip();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Split off the first half of the remaining chunks.
+     *
+     * @return a new range covering the first half, or `null` if less than
+     *         two chunks are remaining. This range continues after it.
+     */
+    public ChunkRange trySplit() {
+        final int size = this.size();
+        if (size < 2) {
+            return null;
+        }
+        final int middle = this.from + size / 2;
+        final ChunkRange prefix = new ChunkRange(this.chunker, this.chunker.views(), this.from, middle);
+        this.from = middle;
+        return prefix;
+    }
+
+}
@@ -9,20 +9,44 @@
 package org.saltyrtc.chunkedDc;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * A Chunker instance splits up a ByteBuffer into multiple chunks.
  *
  * The Chunker is initialized with an ID. For each message to be chunked,
- * a new Chunker instance is required.
+ * a new Chunker instance is required. To chunk many messages without
+ * allocating a Chunker for each of them, use a ChunkerSession.
+ *
+ * A message may also consist of multiple ByteBuffers, which are chunked
+ * as if they were concatenated.
  */
 public class Chunker {
 
-    private final long id;
-    private final ByteBuffer buf;
+    private static final ByteBuffer[] NO_BUFFERS = new ByteBuffer[0];
+
+    private long id;
     private final int chunkDataSize;
     private int chunkId;
 
+    // Message buffers, empty buffers are skipped
+    private ByteBuffer[] bufs = NO_BUFFERS;
+    private int[] starts = new int[0];
+    private int[] offsets = new int[0];
+    private int bufCount;
+    private int length;
+    private int offset;
+    private int current;
+
+    // Forward error correction
+    private final int parityGroupSize;
+    private final byte[] parity;
+    private int parityLength;
+    private int groupStart;
+    private int groupCount;
+    private int lengthXor;
+    private boolean parityPending;
+
     /**
      * Create a Chunker instance.
      *
@@ -34,26 +58,190 @@ public class Chunker {
      * @throws IllegalArgumentException if buffer is empty
      */
     public Chunker(long id, ByteBuffer buf, int chunkSize) {
+        this(id, buf, chunkSize, 0);
+    }
+
+    /**
+     * Create a Chunker instance with forward error correction.
+     *
+     * After every `parityGroupSize` chunks (and after the last chunk, unless
+     * it is alone in its group), a parity chunk is emitted. It allows the receiver to restore a single
+     * lost chunk of the group. To make room for the parity header, chunks
+     * carry 8 bytes less data than without forward error correction.
+     *
+     * Note: Parity chunks can only be processed by receivers that support them!
+     *
+     * @param id An identifier for the message. Must be between 0 and 2**32-1.
+     * @param buf The ByteBuffer containing the data that should be chunked.
+     * @param chunkSize The chunk size *including* header data.
+     * @param parityGroupSize Number of chunks per parity chunk, or 0 to disable.
+     * @throws IllegalArgumentException if message id is negative
+     * @throws IllegalArgumentException if chunk size is less than 1 (9 with parity)
+     * @throws IllegalArgumentException if parity group size is negative
+     * @throws IllegalArgumentException if buffer is empty
+     */
+    public Chunker(long id, ByteBuffer buf, int chunkSize, int parityGroupSize) {
+        this(chunkSize, parityGroupSize);
+        this.reset(id, buf);
+    }
+
+    /**
+     * Create a Chunker instance for a message consisting of multiple buffers.
+     *
+     * Chunks span the buffer boundaries, so the message is chunked as if
+     * the buffers were concatenated, without copying them into a single
+     * buffer first.
+     *
+     * @param id An identifier for the message. Must be between 0 and 2**32-1.
+     * @param bufs The ByteBuffers containing the data that should be chunked.
+     * @param chunkSize The chunk size *including* header data.
+     * @throws IllegalArgumentException if message id is negative
+     * @throws IllegalArgumentException if chunk size is less than 1
+     * @throws IllegalArgumentException if all buffers are empty
+     * @throws IllegalArgumentException if the message is larger than 2 GiB
+     */
+    public Chunker(long id, ByteBuffer[] bufs, int chunkSize) {
+        this(id, bufs, chunkSize, 0);
+    }
+
+    /**
+     * Create a Chunker instance with forward error correction for a message
+     * consisting of multiple buffers.
+     *
+     * See `Chunker(long, ByteBuffer, int, int)` and `Chunker(long, ByteBuffer[], int)`.
+     */
+    public Chunker(long id, ByteBuffer[] bufs, int chunkSize, int parityGroupSize) {
+        this(chunkSize, parityGroupSize);
+        this.reset(id, bufs);
+    }
+
+    /**
+     * Create a Chunker instance without a message, see `reset`.
+     */
+    Chunker(int chunkSize, int parityGroupSize) {
+        if (parityGroupSize < 0) {
+            throw new IllegalArgumentException("Parity group size may not be negative");
+        }
+        final int overhead = Common.HEADER_LENGTH + (parityGroupSize > 0 ? Common.PARITY_HEADER_LENGTH : 0);
+        if (chunkSize < (overhead + 1)) {
+            throw new IllegalArgumentException("Chunk size must be at least " + (overhead + 1));
+        }
+        this.chunkDataSize = chunkSize - overhead;
+        this.parityGroupSize = parityGroupSize;
+        this.parity = parityGroupSize > 0 ? new byte[this.chunkDataSize] : null;
+    }
+
+    /**
+     * Start chunking a new message.
+     *
+     * @throws IllegalArgumentException if message id is negative
+     * @throws IllegalArgumentException if buffer is empty
+     */
+    void reset(long id, ByteBuffer buf) {
         if (id < 0) {
             throw new IllegalArgumentException("Message id may not be negative");
         }
-        if (chunkSize < (Common.HEADER_LENGTH + 1)) {
-            throw new IllegalArgumentException("Chunk size must be at least " + (Common.HEADER_LENGTH + 1));
-        }
         if (!buf.hasRemaining()) {
             throw new IllegalArgumentException("Buffer may not be empty");
         }
+        this.ensureCapacity(1);
+        this.bufs[0] = buf;
+        this.starts[0] = buf.position();
+        this.offsets[0] = 0;
+        this.start(id, 1, buf.remaining());
+    }
+
+    /**
+     * Start chunking a new message consisting of multiple buffers.
+     *
+     * @throws IllegalArgumentException if message id is negative
+     * @throws IllegalArgumentException if all buffers are empty
+     * @throws IllegalArgumentException if the message is larger than 2 GiB
+     */
+    void reset(long id, ByteBuffer[] bufs) {
+        if (id < 0) {
+            throw new IllegalArgumentException("Message id may not be negative");
+        }
+        long length = 0;
+        int count = 0;
+        for (ByteBuffer buf : bufs) {
+            if (buf.hasRemaining()) {
+                length += buf.remaining();
+                count++;
+            }
+        }
+        if (length == 0) {
+            throw new IllegalArgumentException("Buffer may not be empty");
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Message may not be larger than 2 GiB");
+        }
+        this.ensureCapacity(count);
+        int index = 0;
+        int offset = 0;
+        for (ByteBuffer buf : bufs) {
+            if (buf.hasRemaining()) {
+                this.bufs[index] = buf;
+                this.starts[index] = buf.position();
+                this.offsets[index] = offset;
+                offset += buf.remaining();
+                index++;
+            }
+        }
+        this.start(id, count, (int) length);
+    }
+
+    /**
+     * Make room for the specified number of buffers and drop references to
+     * the buffers of the previous message.
+     */
+    private void ensureCapacity(int count) {
+        if (this.bufs.length < count) {
+            this.bufs = new ByteBuffer[count];
+            this.starts = new int[count];
+            this.offsets = new int[count];
+        } else if (this.bufCount > count) {
+            Arrays.fill(this.bufs, count, this.bufCount, null);
+        }
+    }
+
+    /**
+     * Start chunking the message in the first `count` buffers.
+     */
+    private void start(long id, int count, int length) {
         this.id = id;
-        this.buf = buf;
-        this.chunkDataSize = chunkSize - Common.HEADER_LENGTH;
+        this.bufCount = count;
+        this.length = length;
+        this.offset = 0;
+        this.current = 0;
         this.chunkId = 0;
+        this.parityPending = false;
+        this.resetParity();
+
+        final Instrumentation instrumentation = Instrumentation.installed;
+        if (instrumentation != null) {
+            instrumentation.messageChunked(id, this.length, this.getChunkCount());
+        }
+    }
+
+    /**
+     * Start a new parity group.
+     */
+    private void resetParity() {
+        if (this.parity != null) {
+            Arrays.fill(this.parity, 0, this.parityLength, (byte) 0);
+            this.parityLength = 0;
+            this.groupStart = this.chunkId;
+            this.groupCount = 0;
+            this.lengthXor = 0;
+        }
     }
 
     /**
      * Whether there are more chunks available.
      */
     public boolean hasNext() {
-        return this.buf.hasRemaining();
+        return this.offset < this.length || this.parityPending;
     }
 
     /**
@@ -64,23 +252,278 @@ public class Chunker {
             return null;
         }
         // Allocate chunk buffer
-        final int remaining = this.buf.remaining();
-        final int chunkBytes = remaining < this.chunkDataSize ? remaining : this.chunkDataSize;
+        final int chunkBytes;
+        if (this.parityPending) {
+            chunkBytes = Common.PARITY_HEADER_LENGTH + this.parityLength;
+        } else {
+            final int remaining = this.length - this.offset;
+            chunkBytes = remaining < this.chunkDataSize ? remaining : this.chunkDataSize;
+        }
         final ByteBuffer chunk = ByteBuffer.allocate(chunkBytes + Common.HEADER_LENGTH);
+        this.writeNext(chunk);
+        return (ByteBuffer) chunk.flip();
+    }
 
-        // Create header
-        final byte options = remaining > chunkBytes ? (byte) 0 : (byte) 1;
-        final int id = UnsignedHelper.getUnsignedInt(this.id);
-        final int serial = UnsignedHelper.getUnsignedInt(this.nextSerial());
+    /**
+     * Write the next chunk to the specified buffer, which must have room
+     * for a full chunk. There must be chunks remaining.
+     */
+    void writeNext(ByteBuffer chunk) {
+        if (this.parityPending) {
+            this.writeParity(chunk);
+            return;
+        }
+        final int chunkBytes = this.writeNextHeader(chunk);
+        final int position = chunk.position();
+        this.copyNext(chunkBytes, chunk);
+        if (this.parity != null) {
+            this.updateParity(chunk, position, chunkBytes);
+        }
+    }
 
-        // Write to chunk buffer
+    /**
+     * Write the header of the next data chunk.
+     *
+     * @return the data length of the chunk.
+     */
+    private int writeNextHeader(ByteBuffer chunk) {
+        final int remaining = this.length - this.offset;
+        final int chunkBytes = remaining < this.chunkDataSize ? remaining : this.chunkDataSize;
+        final byte options = remaining > chunkBytes ? (byte) 0 : Common.OPTION_END_OF_MESSAGE;
         chunk.put(options);
-        chunk.putInt(id);
+        chunk.putInt(UnsignedHelper.getUnsignedInt(this.id));
+        chunk.putInt(UnsignedHelper.getUnsignedInt(this.nextSerial()));
+        return chunkBytes;
+    }
+
+    /**
+     * Copy the next `chunkBytes` bytes of the message to the chunk,
+     * consuming the message buffers.
+     */
+    private void copyNext(int chunkBytes, ByteBuffer chunk) {
+        int remaining = chunkBytes;
+        while (remaining > 0) {
+            final ByteBuffer buf = this.bufs[this.current];
+            if (!buf.hasRemaining()) {
+                this.current++;
+                continue;
+            }
+            final int bytes = Math.min(remaining, buf.remaining());
+            final int limit = buf.limit();
+            buf.limit(buf.position() + bytes);
+            chunk.put(buf);
+            buf.limit(limit);
+            remaining -= bytes;
+        }
+        this.offset += chunkBytes;
+    }
+
+    /**
+     * Return the number of data chunks of the message, not counting parity chunks.
+     */
+    public int getChunkCount() {
+        return (int) (((long) this.length + this.chunkDataSize - 1) / this.chunkDataSize);
+    }
+
+    /**
+     * Return the data chunk with the specified serial again.
+     *
+     * This allows retransmitting chunks reported missing by the receiver (see
+     * `Unchunker.getMissingChunks`) without chunking the whole message again.
+     * It does not affect the iteration with `next`. The content of the
+     * ByteBuffer must not have been modified in the meantime.
+     *
+     * @throws IllegalArgumentException if there is no chunk with the specified serial
+     */
+    public ByteBuffer getChunk(int serial) {
+        this.checkSerial(serial);
+        final ByteBuffer chunk = ByteBuffer.allocate(this.chunkLength(serial) + Common.HEADER_LENGTH);
+        this.writeChunk(this.views(), serial, chunk);
+        return (ByteBuffer) chunk.flip();
+    }
+
+    /**
+     * Return a range over all data chunks of the message.
+     *
+     * Ranges can be split and processed by multiple threads or sent over
+     * multiple channels. They don't include parity chunks and they don't
+     * affect the iteration with `next`. The range becomes invalid if the
+     * Chunker is reused for another message.
+     */
+    public ChunkRange range() {
+        return new ChunkRange(this, this.views(), 0, this.getChunkCount());
+    }
+
+    /**
+     * Return a range over the data chunks from serial `from` (inclusive)
+     * to serial `to` (exclusive), see `range()`.
+     *
+     * @throws IllegalArgumentException if the range is invalid
+     */
+    public ChunkRange range(int from, int to) {
+        if (from < 0 || to > this.getChunkCount() || from > to) {
+            throw new IllegalArgumentException("Invalid range: " + from + " to " + to);
+        }
+        return new ChunkRange(this, this.views(), from, to);
+    }
+
+    /**
+     * @throws IllegalArgumentException if there is no chunk with the specified serial
+     */
+    private void checkSerial(int serial) {
+        if (serial < 0 || serial >= this.getChunkCount()) {
+            throw new IllegalArgumentException("Invalid serial: " + serial);
+        }
+    }
+
+    /**
+     * Return the data length of the chunk with the specified serial.
+     */
+    int chunkLength(int serial) {
+        return Math.min(this.chunkDataSize, this.length - serial * this.chunkDataSize);
+    }
+
+    /**
+     * Return new views of the message buffers, for random access.
+     */
+    ByteBuffer[] views() {
+        final ByteBuffer[] views = new ByteBuffer[this.bufCount];
+        for (int i = 0; i < this.bufCount; i++) {
+            views[i] = this.bufs[i].duplicate();
+        }
+        return views;
+    }
+
+    /**
+     * Write the data chunk with the specified serial to the specified buffer,
+     * copying from `views` (see `views()`). The positions of the views are modified.
+     */
+    void writeChunk(ByteBuffer[] views, int serial, ByteBuffer chunk) {
+        final int offset = serial * this.chunkDataSize;
+        final int chunkBytes = this.chunkLength(serial);
+
+        // Create header
+        chunk.put(offset + chunkBytes == this.length ? Common.OPTION_END_OF_MESSAGE : 0);
+        chunk.putInt(UnsignedHelper.getUnsignedInt(this.id));
         chunk.putInt(serial);
+
+        // Copy data
+        int index = this.bufferAt(offset);
+        int position = this.starts[index] + offset - this.offsets[index];
+        int remaining = chunkBytes;
+        while (remaining > 0) {
+            final ByteBuffer view = views[index];
+            final int bytes = Math.min(remaining, this.bufferLength(index) - (position - this.starts[index]));
+            view.limit(position + bytes);
+            view.position(position);
+            chunk.put(view);
+            remaining -= bytes;
+            index++;
+            position = index < this.bufCount ? this.starts[index] : 0;
+        }
+    }
+
+    /**
+     * Return the index of the buffer containing the specified message offset.
+     */
+    private int bufferAt(int offset) {
+        final int index = Arrays.binarySearch(this.offsets, 0, this.bufCount, offset);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    /**
+     * Return the number of message bytes in the buffer with the specified index.
+     */
+    private int bufferLength(int index) {
+        final int end = index + 1 < this.bufCount ? this.offsets[index + 1] : this.length;
+        return end - this.offsets[index];
+    }
+
+    /**
+     * Return the maximum length of a chunk including header.
+     */
+    int getMaxChunkLength() {
+        return Common.HEADER_LENGTH + (this.parity != null ? Common.PARITY_HEADER_LENGTH : 0) + this.chunkDataSize;
+    }
+
+    /**
+     * Write the next chunk for a gathering write, avoiding to copy its data.
+     *
+     * If the data of the next chunk lies within a single message buffer,
+     * the header is written to `chunk` and the data is returned as a view of
+     * the message buffer (taken from `views`, see `views()`). Otherwise, and
+     * for parity chunks, the chunk is written to `chunk` completely and `null`
+     * is returned. `chunk` must have room for a full chunk. There must be
+     * chunks remaining.
+     */
+    ByteBuffer writeNextGathering(ByteBuffer chunk, ByteBuffer[] views) {
+        if (this.parityPending) {
+            this.writeParity(chunk);
+            return null;
+        }
+        final int chunkBytes = this.writeNextHeader(chunk);
+        while (!this.bufs[this.current].hasRemaining()) {
+            this.current++;
+        }
+        final ByteBuffer buf = this.bufs[this.current];
+        if (buf.remaining() < chunkBytes) {
+            // Spans multiple buffers
+            final int position = chunk.position();
+            this.copyNext(chunkBytes, chunk);
+            if (this.parity != null) {
+                this.updateParity(chunk, position, chunkBytes);
+            }
+            return null;
+        }
+
+        // Point to the data
+        final int position = buf.position();
+        final ByteBuffer view = views[this.current];
+        view.limit(position + chunkBytes);
+        view.position(position);
+        buf.position(position + chunkBytes);
+        this.offset += chunkBytes;
+        if (this.parity != null) {
+            this.updateParity(view, position, chunkBytes);
+        }
+        return view;
+    }
+
+    /**
+     * Add the chunk data at the specified position of `src` to the parity group.
+     */
+    private void updateParity(ByteBuffer src, int position, int chunkBytes) {
         for (int i = 0; i < chunkBytes; i++) {
-            chunk.put(this.buf.get());
+            this.parity[i] ^= src.get(position + i);
         }
-        return (ByteBuffer) chunk.flip();
+        this.parityLength = Math.max(this.parityLength, chunkBytes);
+        this.lengthXor ^= chunkBytes;
+        this.groupCount++;
+        // The parity of a final group with a single chunk would only repeat that chunk
+        this.parityPending = this.groupCount == this.parityGroupSize
+            || (this.offset == this.length && this.groupCount > 1);
+    }
+
+    /**
+     * Write the parity chunk of the current group.
+     *
+     * The serial of a parity chunk is the serial of the first chunk in its
+     * group. The data consists of the number of chunks in the group, the XOR
+     * of their lengths and the XOR of their (zero padded) data.
+     */
+    private void writeParity(ByteBuffer chunk) {
+        byte options = Common.OPTION_PARITY;
+        if (this.offset == this.length) {
+            options |= Common.OPTION_END_OF_MESSAGE;
+        }
+        chunk.put(options);
+        chunk.putInt(UnsignedHelper.getUnsignedInt(this.id));
+        chunk.putInt(this.groupStart);
+        chunk.putInt(this.groupCount);
+        chunk.putInt(this.lengthXor);
+        chunk.put(this.parity, 0, this.parityLength);
+        this.parityPending = false;
+        this.resetParity();
     }
 
     /**
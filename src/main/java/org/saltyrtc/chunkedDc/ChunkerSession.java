@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2016 Threema GmbH / SaltyRTC Contributors
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+
+package org.saltyrtc.chunkedDc;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A ChunkerSession splits up many messages into chunks, one after another.
+ *
+ * Unlike a Chunker, a session is created once per channel. It allocates
+ * message ids by itself and wraps around after 2**32-1. Chunks are written
+ * into a single reusable buffer, so no objects are allocated per message
+ * or per chunk.
+ *
+ * The receiving Unchunker drops chunks of recently completed message ids,
+ * also after restoring a checkpoint. When a sender reconnects, it must
+ * therefore not start over at id 0. Continue with the `getNextId()` of the
+ * previous session instead.
+ */
+public class ChunkerSession {
+
+    private static final long MAX_ID = 0xFFFFFFFFL;
+
+    private final Chunker chunker;
+    private final ByteBuffer chunk;
+    private long nextId;
+
+    /**
+     * Create a ChunkerSession instance, starting at message id 0.
+     *
+     * @param chunkSize The chunk size *including* header data.
+     * @throws IllegalArgumentException if chunk size is less than 1
+     */
+    public ChunkerSession(int chunkSize) {
+        this(0, chunkSize);
+    }
+
+    /**
+     * Create a ChunkerSession instance.
+     *
+     * @param firstId The id of the first message. Must be between 0 and 2**32-1.
+     * @param chunkSize The chunk size *including* header data.
+     * @throws IllegalArgumentException if message id is out of bounds
+     * @throws IllegalArgumentException if chunk size is less than 1
+     */
+    public ChunkerSession(long firstId, int chunkSize) {
+        this(firstId, chunkSize, 0);
+    }
+
+    /**
+     * Create a ChunkerSession instance with forward error correction.
+     *
+     * See `Chunker(long, ByteBuffer, int, int)` for details.
+     *
+     * @param firstId The id of the first message. Must be between 0 and 2**32-1.
+     * @param chunkSize The chunk size *including* header data.
+     * @param parityGroupSize Number of chunks per parity chunk, or 0 to disable.
+     * @throws IllegalArgumentException if message id is out of bounds
+     * @throws IllegalArgumentException if chunk size is less than 1 (9 with parity)
+     * @throws IllegalArgumentException if parity group size is negative
+     */
+    public ChunkerSession(long firstId, int chunkSize, int parityGroupSize) {
+        if (firstId < 0 || firstId > MAX_ID) {
+            throw new IllegalArgumentException("Message id must be between 0 and 2**32-1");
+        }
+        this.chunker = new Chunker(chunkSize, parityGroupSize);
+        this.chunk = ByteBuffer.allocate(chunkSize);
+        this.nextId = firstId;
+    }
+
+    /**
+     * Start chunking a new message.
+     *
+     * Remaining chunks of the previous message are discarded.
+     *
+     * @param buf The ByteBuffer containing the data that should be chunked.
+     *            It must not be modified until all chunks have been retrieved.
+     * @return the id allocated for the message.
+     * @throws IllegalArgumentException if buffer is empty
+     */
+    public synchronized long begin(ByteBuffer buf) {
+        this.chunker.reset(this.nextId, buf);
+        return this.allocateId();
+    }
+
+    /**
+     * Start chunking a new message consisting of multiple buffers, which
+     * are chunked as if they were concatenated.
+     *
+     * Remaining chunks of the previous message are discarded.
+     *
+     * @param bufs The ByteBuffers containing the data that should be chunked.
+     *             They must not be modified until all chunks have been retrieved.
+     * @return the id allocated for the message.
+     * @throws IllegalArgumentException if all buffers are empty
+     * @throws IllegalArgumentException if the message is larger than 2 GiB
+     */
+    public synchronized long begin(ByteBuffer[] bufs) {
+        this.chunker.reset(this.nextId, bufs);
+        return this.allocateId();
+    }
+
+    /**
+     * Allocate a message id without chunking a message.
+     */
+    synchronized long allocateId() {
+        final long id = this.nextId;
+        this.nextId = id == MAX_ID ? 0 : id + 1;
+        return id;
+    }
+
+    /**
+     * Return the chunk size *including* header data.
+     */
+    int getChunkSize() {
+        return this.chunk.capacity();
+    }
+
+    /**
+     * Whether there are more chunks of the current message available.
+     */
+    public synchronized boolean hasNext() {
+        return this.chunker.hasNext();
+    }
+
+    /**
+     * Return the next chunk of the current message, or `null` if there
+     * are no chunks remaining.
+     *
+     * The returned buffer is reused by the next call, so the chunk must be
+     * sent (or copied) before requesting another one.
+     */
+    public synchronized ByteBuffer next() {
+        if (!this.chunker.hasNext()) {
+            return null;
+        }
+        this.chunk.clear();
+        this.chunker.writeNext(this.chunk);
+        this.chunk.flip();
+        return this.chunk;
+    }
+
+    /**
+     * Return the id that will be allocated for the next message.
+     */
+    public synchronized long getNextId() {
+        return this.nextId;
+    }
+
+}
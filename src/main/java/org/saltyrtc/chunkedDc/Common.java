@@ -10,4 +10,27 @@ package org.saltyrtc.chunkedDc;
 
 public class Common {
     public static int HEADER_LENGTH = 9;
+
+    /**
+     * Options flag: This is the last chunk of the message (or, for a parity
+     * chunk, its group contains the last chunk).
+     */
+    static final byte OPTION_END_OF_MESSAGE = 0x01;
+
+    /**
+     * Options flag: This is a parity chunk.
+     */
+    static final byte OPTION_PARITY = 0x02;
+
+    /**
+     * Options flag: This is a single chunk containing multiple small messages,
+     * each prefixed with its length as an unsigned 16 bit integer.
+     */
+    static final byte OPTION_BATCH = 0x04;
+
+    /**
+     * Length of the parity header (chunk count and XOR of the chunk lengths)
+     * in front of the parity data of a parity chunk.
+     */
+    static final int PARITY_HEADER_LENGTH = 8;
 }
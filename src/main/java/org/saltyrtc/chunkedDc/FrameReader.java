@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2016 Threema GmbH / SaltyRTC Contributors
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+
+package org.saltyrtc.chunkedDc;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * A FrameReader reads frames written by a FrameWriter from a byte stream
+ * and adds the chunks to an Unchunker.
+ *
+ * Frames are read into a single buffer that is reused for all frames, and
+ * passed to the Unchunker without copying them first.
+ */
+public class FrameReader {
+
+    private final ReadableByteChannel channel;
+    private final Unchunker unchunker;
+    private final int maxFrameLength;
+    private final ByteBuffer buf;
+    private final ByteBuffer frame;
+
+    /**
+     * Create a FrameReader instance.
+     *
+     * @param channel The channel to read from.
+     * @param unchunker The Unchunker to add the chunks to.
+     * @param maxFrameLength The maximum frame length, usually the chunk size.
+     * @throws IllegalArgumentException if the maximum frame length is too small
+     */
+    public FrameReader(ReadableByteChannel channel, Unchunker unchunker, int maxFrameLength) {
+        if (maxFrameLength < Common.HEADER_LENGTH || maxFrameLength > Integer.MAX_VALUE - FrameWriter.PREFIX_LENGTH) {
+            throw new IllegalArgumentException("Invalid maximum frame length");
+        }
+        this.channel = channel;
+        this.unchunker = unchunker;
+        this.maxFrameLength = maxFrameLength;
+        this.buf = ByteBuffer.allocate(FrameWriter.PREFIX_LENGTH + maxFrameLength);
+        this.frame = this.buf.duplicate();
+    }
+
+    /**
+     * Read from the channel once and add all complete frames to the Unchunker.
+     *
+     * With a blocking channel, this blocks until some bytes are available.
+     * With a non-blocking channel, call this whenever the channel is readable.
+     *
+     * @return the number of frames read, or -1 if the end of the stream
+     *         has been reached.
+     * @throws StreamCorruptedException if a frame is larger than the maximum
+     *         frame length or if the stream ends within a frame.
+     * @throws IOException if reading from the channel fails.
+     * @throws IllegalArgumentException if a frame contains an invalid chunk.
+     *         The frame is skipped, so reading can continue.
+     */
+    public synchronized int read() throws IOException {
+        // Frames left over from a previous call
+        int frames = this.dispatch();
+        if (frames > 0) {
+            return frames;
+        }
+
+        final int read = this.channel.read(this.buf);
+        frames = this.dispatch();
+        if (read < 0 && frames == 0) {
+            if (this.buf.position() > 0) {
+                throw new StreamCorruptedException("Stream ended within a frame");
+            }
+            return -1;
+        }
+        return frames;
+    }
+
+    /**
+     * Add all complete frames in the buffer to the Unchunker.
+     *
+     * @return the number of frames added.
+     */
+    private int dispatch() throws StreamCorruptedException {
+        this.buf.flip();
+        try {
+            int frames = 0;
+            while (this.buf.remaining() >= FrameWriter.PREFIX_LENGTH) {
+                final int start = this.buf.position();
+                final long length = UnsignedHelper.readUnsignedInt(this.buf.getInt(start));
+                if (length > this.maxFrameLength) {
+                    throw new StreamCorruptedException("Frame too large: " + length);
+                }
+                final int end = start + FrameWriter.PREFIX_LENGTH + (int) length;
+                if (end > this.buf.limit()) {
+                    break;
+                }
+
+                // Skip the frame before adding it, in case it is invalid
+                this.buf.position(end);
+                this.frame.limit(end);
+                this.frame.position(start + FrameWriter.PREFIX_LENGTH);
+                this.unchunker.add(this.frame);
+                frames++;
+            }
+            return frames;
+        } finally {
+            this.buf.compact();
+        }
+    }
+
+}
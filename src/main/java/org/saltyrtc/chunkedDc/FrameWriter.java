@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2016 Threema GmbH / SaltyRTC Contributors
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+
+package org.saltyrtc.chunkedDc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * A FrameWriter writes chunks to a byte stream, e.g. a TCP connection.
+ *
+ * Each chunk is prefixed with its length as an unsigned 32 bit big endian
+ * integer. The length prefix, the chunk header and the chunk data are
+ * written with a single gathering write, without copying them into a
+ * frame first. Use a FrameReader to read the frames on the other side.
+ *
+ * The channel must be in blocking mode.
+ */
+public class FrameWriter {
+
+    /**
+     * Length of the frame length prefix.
+     */
+    public static final int PREFIX_LENGTH = 4;
+
+    private final GatheringByteChannel channel;
+    private final ByteBuffer prefix = ByteBuffer.allocate(PREFIX_LENGTH);
+    private ByteBuffer header = ByteBuffer.allocate(0);
+    private final ByteBuffer[] frame = new ByteBuffer[3];
+
+    /**
+     * Create a FrameWriter instance.
+     *
+     * @param channel The channel to write to.
+     */
+    public FrameWriter(GatheringByteChannel channel) {
+        this.channel = channel;
+        this.frame[0] = this.prefix;
+    }
+
+    /**
+     * Write a single chunk as a frame.
+     *
+     * @param chunk ByteBuffer containing a chunk, will be consumed.
+     * @throws IOException if writing to the channel fails.
+     */
+    public synchronized void write(ByteBuffer chunk) throws IOException {
+        this.prefix.clear();
+        this.prefix.putInt(chunk.remaining());
+        this.prefix.flip();
+        this.frame[1] = chunk;
+        this.writeFrame(2);
+        this.frame[1] = null;
+    }
+
+    /**
+     * Write all remaining chunks of a Chunker as frames.
+     *
+     * The chunk data is written directly from the message buffers, unless
+     * a chunk spans multiple buffers.
+     *
+     * @param chunker The Chunker to take the chunks from.
+     * @return the number of frames written.
+     * @throws IOException if writing to the channel fails.
+     */
+    public synchronized int write(Chunker chunker) throws IOException {
+        final int maxChunkLength = chunker.getMaxChunkLength();
+        if (this.header.capacity() < maxChunkLength) {
+            this.header = ByteBuffer.allocate(maxChunkLength);
+        }
+        final ByteBuffer[] views = chunker.views();
+        this.frame[1] = this.header;
+        int frames = 0;
+        try {
+            while (chunker.hasNext()) {
+                this.header.clear();
+                final ByteBuffer data = chunker.writeNextGathering(this.header, views);
+                this.header.flip();
+                this.prefix.clear();
+                this.prefix.putInt(this.header.remaining() + (data != null ? data.remaining() : 0));
+                this.prefix.flip();
+                if (data != null) {
+                    this.frame[2] = data;
+                    this.writeFrame(3);
+                } else {
+                    this.writeFrame(2);
+                }
+                frames++;
+            }
+        } finally {
+            this.frame[1] = null;
+            this.frame[2] = null;
+        }
+        return frames;
+    }
+
+    /**
+     * Write the first `length` buffers of the frame completely.
+     */
+    private void writeFrame(int length) throws IOException {
+        while (this.frame[length - 1].hasRemaining() || this.frame[0].hasRemaining()
+                || this.frame[1].hasRemaining()) {
+            this.channel.write(this.frame, 0, length);
+        }
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2016 Threema GmbH / SaltyRTC Contributors
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+
+package org.saltyrtc.chunkedDc;
+
+/**
+ * Hooks into the chunk lifecycle, e.g. for profiling.
+ *
+ * Override the methods you are interested in and `install` an instance.
+ * All methods do nothing by default. While no instance is installed, the
+ * hooks cost a single volatile read.
+ *
+ * The methods are called on the thread chunking or adding a chunk, those
+ * of the Unchunker while holding its lock. They must not throw and should
+ * return quickly.
+ */
+public abstract class Instrumentation {
+
+    static volatile Instrumentation installed = null;
+
+    /**
+     * Install an instance, replacing the previous one.
+     *
+     * @param instrumentation The instance to install, or `null` to uninstall.
+     */
+    public static void install(Instrumentation instrumentation) {
+        installed = instrumentation;
+    }
+
+    /**
+     * Return the installed instance, or `null` if there is none.
+     */
+    public static Instrumentation getInstalled() {
+        return installed;
+    }
+
+    /**
+     * A Chunker started chunking a message.
+     *
+     * @param id The message id.
+     * @param length The message length in bytes.
+     * @param chunks The number of data chunks, not counting parity chunks.
+     */
+    public void messageChunked(long id, int length, int chunks) {
+    }
+
+    /**
+     * An Unchunker received a chunk that was not dropped.
+     *
+     * @param id The message id.
+     * @param serial The chunk serial.
+     * @param length The chunk length including header.
+     * @param parity Whether this is a parity chunk.
+     */
+    public void chunkReceived(long id, long serial, int length, boolean parity) {
+    }
+
+    /**
+     * An Unchunker dropped a repeated chunk or a late chunk of a completed message.
+     *
+     * @param id The message id.
+     * @param serial The chunk serial.
+     */
+    public void duplicateDropped(long id, long serial) {
+    }
+
+    /**
+     * An Unchunker completed a message.
+     *
+     * @param id The message id.
+     * @param nanos The time from the first chunk to completion in nanoseconds.
+     * @param chunks The number of data chunks.
+     * @param length The message length in bytes.
+     */
+    public void messageCompleted(long id, long nanos, long chunks, int length) {
+    }
+
+    /**
+     * An Unchunker removed an incomplete message in `gc`.
+     *
+     * @param id The message id.
+     * @param chunks The number of chunks received.
+     */
+    public void messageExpired(long id, int chunks) {
+    }
+
+    /**
+     * A thread waited for the lock of an Unchunker in `add`.
+     *
+     * Called on every `add`, also if the lock was not contended, so
+     * implementations should ignore short waits.
+     *
+     * @param nanos The time spent waiting in nanoseconds.
+     */
+    public void lockWait(long nanos) {
+    }
+
+}
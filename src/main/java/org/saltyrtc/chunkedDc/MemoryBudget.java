@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2016 Threema GmbH / SaltyRTC Contributors
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+
+package org.saltyrtc.chunkedDc;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A memory budget shared by multiple Unchunker instances.
+ *
+ * Bytes are reserved without locking, so an Unchunker can check the budget
+ * while holding its own lock without ever waiting for another Unchunker.
+ */
+class MemoryBudget {
+
+    private final long maxBytes;
+    private final AtomicLong usedBytes = new AtomicLong();
+
+    MemoryBudget(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Reserve the specified number of bytes.
+     *
+     * @return whether the bytes fit into the budget.
+     */
+    boolean tryReserve(long bytes) {
+        while (true) {
+            final long used = this.usedBytes.get();
+            if (bytes > this.maxBytes - used) {
+                return false;
+            }
+            if (this.usedBytes.compareAndSet(used, used + bytes)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Give back bytes reserved with `tryReserve`.
+     */
+    void release(long bytes) {
+        this.usedBytes.addAndGet(-bytes);
+    }
+
+    /**
+     * Return the number of bytes that can still be reserved.
+     */
+    long getAvailableBytes() {
+        return this.maxBytes - this.usedBytes.get();
+    }
+
+}
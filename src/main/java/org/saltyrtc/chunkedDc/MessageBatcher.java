@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2016 Threema GmbH / SaltyRTC Contributors
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+
+package org.saltyrtc.chunkedDc;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A MessageBatcher packs small messages into shared chunks.
+ *
+ * Messages are collected until the next one would not fit into the chunk
+ * or until the linger time has passed since the first message of the
+ * batch. The batch is then sent as a single chunk marked with the `0x04`
+ * options flag. Each message in it is prefixed with its length as an
+ * unsigned 16 bit integer. Messages that don't fit into a batch are
+ * chunked as usual, after flushing the current batch, so the order of
+ * messages is preserved.
+ *
+ * Note: Batch chunks can only be processed by receivers that support them!
+ */
+public class MessageBatcher {
+
+    private static final int LENGTH_PREFIX = 2;
+    private static final int MAX_BATCHED_LENGTH = 0xFFFF;
+
+    /**
+     * Interface for listeners on chunks ready to be sent.
+     */
+    public interface ChunkListener {
+        /**
+         * Send a chunk. The buffer is reused after this method returns, so
+         * the chunk must be sent (or copied) before returning.
+         */
+        void onChunk(ByteBuffer chunk);
+    }
+
+    private final ChunkerSession session;
+    private final ChunkListener listener;
+    private final ScheduledExecutorService timer;
+    private final long lingerMillis;
+    private final ByteBuffer batch;
+    private int messages = 0;
+    private long generation = 0;
+    private ScheduledFuture<?> lingerTask = null;
+
+    /**
+     * Create a MessageBatcher instance.
+     *
+     * @param session The session to allocate message ids and chunk large
+     *                messages with. It must not be used by anyone else.
+     * @param listener The listener to pass the chunks to.
+     * @param timer The executor to schedule flushes on, or `null` to flush
+     *              only when a batch is full or `flush` is called.
+     * @param lingerMillis Flush a batch at most this many milliseconds after
+     *                     its first message was added.
+     * @throws IllegalArgumentException if the linger time is negative
+     */
+    public MessageBatcher(ChunkerSession session, ChunkListener listener,
+                          ScheduledExecutorService timer, long lingerMillis) {
+        if (lingerMillis < 0) {
+            throw new IllegalArgumentException("Linger time may not be negative");
+        }
+        this.session = session;
+        this.listener = listener;
+        this.timer = timer;
+        this.lingerMillis = lingerMillis;
+        this.batch = ByteBuffer.allocate(session.getChunkSize());
+        this.batch.position(Common.HEADER_LENGTH);
+    }
+
+    /**
+     * Send a message, either in a batch or as regular chunks.
+     *
+     * The message is copied (or chunked) right away, so the buffer may be
+     * reused after this method returns.
+     *
+     * @param message ByteBuffer containing the message, will be consumed.
+     * @throws IllegalArgumentException if the message is empty
+     */
+    public synchronized void send(ByteBuffer message) {
+        final int length = message.remaining();
+        if (length == 0) {
+            throw new IllegalArgumentException("Buffer may not be empty");
+        }
+
+        // Too large to be batched
+        if (length > MAX_BATCHED_LENGTH
+                || LENGTH_PREFIX + length > this.batch.capacity() - Common.HEADER_LENGTH) {
+            this.flush();
+            this.session.begin(message);
+            while (this.session.hasNext()) {
+                this.listener.onChunk(this.session.next());
+            }
+            return;
+        }
+
+        if (LENGTH_PREFIX + length > this.batch.remaining()) {
+            this.flush();
+        }
+        this.batch.putShort((short) length);
+        this.batch.put(message);
+        this.messages++;
+
+        if (this.batch.remaining() <= LENGTH_PREFIX) {
+            this.flush();
+        } else if (this.messages == 1 && this.timer != null) {
+            final long generation = this.generation;
+            this.lingerTask = this.timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    MessageBatcher.this.flush(generation);
+                }
+            }, this.lingerMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Send the current batch, if there is one.
+     */
+    public synchronized void flush() {
+        if (this.messages == 0) {
+            return;
+        }
+        if (this.lingerTask != null) {
+            this.lingerTask.cancel(false);
+            this.lingerTask = null;
+        }
+        this.generation++;
+        try {
+            if (this.messages == 1) {
+                // Send a single message as a regular chunk
+                this.batch.flip();
+                this.batch.position(Common.HEADER_LENGTH + LENGTH_PREFIX);
+                this.session.begin(this.batch);
+                while (this.session.hasNext()) {
+                    this.listener.onChunk(this.session.next());
+                }
+            } else {
+                this.batch.put(0, (byte) (Common.OPTION_BATCH | Common.OPTION_END_OF_MESSAGE));
+                this.batch.putInt(1, UnsignedHelper.getUnsignedInt(this.session.allocateId()));
+                this.batch.putInt(5, 0);
+                this.batch.flip();
+                this.listener.onChunk(this.batch);
+            }
+        } finally {
+            this.messages = 0;
+            this.batch.clear();
+            this.batch.position(Common.HEADER_LENGTH);
+        }
+    }
+
+    /**
+     * Send the batch of the specified generation, if it is still pending.
+     */
+    private synchronized void flush(long generation) {
+        if (generation == this.generation) {
+            this.flush();
+        }
+    }
+
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2016 Threema GmbH / SaltyRTC Contributors
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+
+package org.saltyrtc.chunkedDc;
+
+import java.util.BitSet;
+
+/**
+ * The chunks missing from an incomplete message.
+ *
+ * Can be sent back to the sender to request a selective retransmission.
+ */
+public class MissingChunks {
+
+    private final long id;
+    private final BitSet missing;
+    private final long highestSerial;
+    private final boolean endKnown;
+
+    MissingChunks(long id, BitSet missing, long highestSerial, boolean endKnown) {
+        this.id = id;
+        this.missing = missing;
+        this.highestSerial = highestSerial;
+        this.endKnown = endKnown;
+    }
+
+    /**
+     * Return the message id.
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * Return the serials of the missing chunks up to the highest known serial.
+     */
+    public BitSet getMissingSerials() {
+        return missing;
+    }
+
+    /**
+     * Return the highest known serial: The serial of the end chunk if it has
+     * arrived, otherwise the highest serial that has arrived (or -1).
+     */
+    public long getHighestSerial() {
+        return highestSerial;
+    }
+
+    /**
+     * Whether the end chunk has arrived. If not, chunks after the highest
+     * known serial may be missing as well.
+     */
+    public boolean isEndKnown() {
+        return endKnown;
+    }
+
+}
@@ -8,12 +8,17 @@
 
 package org.saltyrtc.chunkedDc;
 
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * An Unchunker instance merges multiple chunks into a single ByteBuffer.
@@ -23,6 +28,23 @@ import java.util.TreeSet;
  */
 public class Unchunker {
 
+    /**
+     * Default number of completed message ids to remember.
+     */
+    public static final int DEFAULT_COMPLETED_ID_WINDOW = 1024;
+
+    /**
+     * Default maximum length of a reassembled message in bytes (64 MiB).
+     */
+    public static final int DEFAULT_MAX_MESSAGE_LENGTH = 64 * 1024 * 1024;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    // Checkpoint format
+    private static final byte CHECKPOINT_VERSION = 1;
+    private static final byte CHECKPOINT_PAYLOAD_SIZE = 0x01;
+    private static final byte CHECKPOINT_END = 0x02;
+
     /**
      * Interface for message listeners.
      */
@@ -31,20 +53,499 @@ public class Unchunker {
     }
 
     /**
-     * Inner class to hold chunks and an "end-arrived" flag.
+     * Interface for listeners on stalled messages.
      */
-    private static class ChunkCollector {
-        private boolean endArrived = false;
-        private Long messageLength = null;
-        private final SortedSet<Chunk> chunks = new TreeSet<>();
+    public interface StallListener {
+        void onStall(MissingChunks missing);
+    }
+
+    /**
+     * Inner class to reassemble the chunks of a single message.
+     *
+     * All chunks except for the end chunk have the same size, so each chunk
+     * is written to its final offset (`serial * payloadSize`) as soon as it
+     * arrives. Until the end chunk shows the message length, the buffer
+     * grows as needed. All buffers are allocated through the Unchunker.
+     *
+     * Parity chunks are kept until their group is complete. If exactly one
+     * chunk of a group is missing, it is restored from the parity chunk.
+     */
+    private class ChunkCollector {
+
+        private int payloadSize = -1;
+        private long endSerial = -1;
+        private long maxSerial = -1;
+        private byte[] pendingEnd = null;
+        private int pendingEndLength = 0;
+        private int messageLength = -1;
+        private byte[] data = EMPTY;
+        private long[] received = new long[1];
+        private int count = 0;
+        private TreeMap<Long, Parity> parities = null;
         private long lastUpdate = System.nanoTime();
+        private final long created = this.lastUpdate;
+        private boolean stallReported = false;
+
+        /**
+         * Return whether the chunk with the specified serial has already been added.
+         */
+        public boolean hasChunk(long serial) {
+            if (serial == this.endSerial && this.pendingEnd != null) {
+                return true;
+            }
+            final int index = (int) (serial >>> 6);
+            return index < this.received.length && (this.received[index] & (1L << serial)) != 0;
+        }
+
+        /**
+         * Return whether the parity chunk of the group starting at the
+         * specified serial is currently being kept.
+         */
+        public boolean hasParity(long start) {
+            return this.parities != null && this.parities.containsKey(start);
+        }
+
+        /**
+         * Add a chunk and restore a missing chunk of its parity group, if possible.
+         *
+         * @see #putChunk(long, boolean, ByteBuffer)
+         */
+        public void addChunk(long serial, boolean end, ByteBuffer payload) {
+            this.putChunk(serial, end, payload);
+            if (this.parities != null) {
+                final Map.Entry<Long, Parity> group = this.parities.floorEntry(serial);
+                if (group != null && serial - group.getKey() < group.getValue().count) {
+                    this.recover(group.getKey(), group.getValue());
+                }
+            }
+        }
 
-        public void addChunk(Chunk chunk) {
-            this.chunks.add(chunk);
+        /**
+         * Add a parity chunk and restore a missing chunk of its group, if possible.
+         *
+         * @param start The serial of the first chunk in the group.
+         * @param end Whether the group contains the end chunk.
+         * @param payload The parity chunk payload, will be consumed.
+         * @throws IllegalArgumentException if the parity chunk is invalid.
+         * @throws MemoryBudgetExceededException if the parity cannot be stored.
+         */
+        public void addParity(long start, boolean end, ByteBuffer payload) {
+            if (payload.remaining() < Common.PARITY_HEADER_LENGTH) {
+                throw new IllegalArgumentException("Invalid chunk: Parity too short");
+            }
+            final long count = UnsignedHelper.readUnsignedInt(payload.getInt());
+            final int lengthXor = payload.getInt();
+            if (count == 0 || start + count > (1L << 32)) {
+                throw new IllegalArgumentException("Invalid chunk: Invalid parity group");
+            }
+            final int length = payload.remaining();
+            final Parity parity = new Parity(count, end, lengthXor, Unchunker.this.allocate(length), length);
+            payload.get(parity.data, 0, length);
+            if (this.parities == null) {
+                this.parities = new TreeMap<>();
+            }
+            this.parities.put(start, parity);
             this.lastUpdate = System.nanoTime();
-            if (chunk.isEndOfMessage()) {
-                this.endArrived = true;
-                this.messageLength = chunk.getSerial() + 1;
+            this.stallReported = false;
+            this.recover(start, parity);
+        }
+
+        /**
+         * Restore the missing chunk of a parity group if it is the only one missing.
+         * Drop the parity once the group is complete.
+         */
+        private void recover(long start, Parity parity) {
+            final long stop = start + parity.count;
+            long missing = -1;
+            for (long serial = start; serial < stop; serial++) {
+                if (!this.hasChunk(serial)) {
+                    if (missing >= 0) {
+                        return;
+                    }
+                    missing = serial;
+                }
+            }
+            this.parities.remove(start);
+            final byte[] restored;
+            try {
+                if (missing < 0) {
+                    return;
+                }
+
+                // Restore length and data by XORing the other chunks onto the parity
+                int length = parity.lengthXor;
+                for (long serial = start; serial < stop; serial++) {
+                    if (serial != missing) {
+                        length ^= this.chunkLength(serial);
+                    }
+                }
+                if (length < 0 || length > parity.length) {
+                    throw new IllegalArgumentException("Invalid chunk: Parity does not match chunks");
+                }
+                restored = Arrays.copyOf(parity.data, length);
+            } finally {
+                // The buffer pool may be shared, so only release the parity once it has been read
+                Unchunker.this.release(parity.data);
+            }
+            for (long serial = start; serial < stop; serial++) {
+                if (serial != missing) {
+                    this.xorChunk(serial, restored);
+                }
+            }
+            this.putChunk(missing, parity.end && missing == stop - 1, ByteBuffer.wrap(restored));
+        }
+
+        /**
+         * Return the payload length of a received chunk.
+         */
+        private int chunkLength(long serial) {
+            if (serial != this.endSerial) {
+                return this.payloadSize;
+            }
+            if (this.pendingEnd != null) {
+                return this.pendingEndLength;
+            }
+            return (int) (this.messageLength - serial * this.payloadSize);
+        }
+
+        /**
+         * XOR the payload of a received chunk onto the start of the target array.
+         */
+        private void xorChunk(long serial, byte[] target) {
+            final int length = Math.min(target.length, this.chunkLength(serial));
+            final byte[] source;
+            final int offset;
+            if (serial == this.endSerial && this.pendingEnd != null) {
+                source = this.pendingEnd;
+                offset = 0;
+            } else {
+                source = this.data;
+                offset = (int) (serial * this.payloadSize);
+            }
+            for (int i = 0; i < length; i++) {
+                target[i] ^= source[offset + i];
+            }
+        }
+
+        /**
+         * Write the payload of a chunk to its offset in the message buffer.
+         *
+         * Note: All chunks except for the end chunk must have the same size!
+         * If a chunk is larger than a previous non-end chunk, a
+         * `BufferOverflowException` is thrown.
+         *
+         * @param serial The chunk serial.
+         * @param end Whether this is the end chunk.
+         * @param payload The chunk payload, will be consumed.
+         * @throws IllegalArgumentException if the chunk contradicts previous chunks.
+         * @throws MemoryBudgetExceededException if the buffer cannot grow.
+         */
+        private void putChunk(long serial, boolean end, ByteBuffer payload) {
+            final int length = payload.remaining();
+            if (end) {
+                if (this.endSerial >= 0) {
+                    throw new IllegalArgumentException("Invalid chunk: Duplicate end of message");
+                }
+                if (serial < this.maxSerial) {
+                    throw new IllegalArgumentException("Invalid chunk: End of message before last chunk");
+                }
+                if (this.payloadSize < 0 && serial == 0) {
+                    // Single chunk message (restored from parity)
+                    this.payloadSize = length;
+                }
+                if (this.payloadSize < 0) {
+                    // Payload size unknown, keep the end chunk until it is.
+                    // All chunks before it carry at least one byte.
+                    if (serial + length > Unchunker.this.maxMessageLength) {
+                        throw new BufferOverflowException();
+                    }
+                    this.pendingEnd = Unchunker.this.allocate(length);
+                    this.pendingEndLength = length;
+                    payload.get(this.pendingEnd, 0, length);
+                } else {
+                    this.messageLength = this.offset(serial, length);
+                    this.write(serial, payload);
+                }
+                this.endSerial = serial;
+            } else {
+                if (this.endSerial >= 0 && serial > this.endSerial) {
+                    throw new IllegalArgumentException("Invalid chunk: Chunk after end of message");
+                }
+                if (length == 0) {
+                    throw new IllegalArgumentException("Invalid chunk: Empty chunk before end of message");
+                }
+                if (this.payloadSize < 0) {
+                    if (this.pendingEnd != null && this.pendingEndLength > length) {
+                        throw new BufferOverflowException();
+                    }
+                    this.payloadSize = length;
+                    if (this.pendingEnd != null) {
+                        this.messageLength = this.offset(this.endSerial, this.pendingEndLength);
+                        this.write(this.endSerial, ByteBuffer.wrap(this.pendingEnd, 0, this.pendingEndLength));
+                        Unchunker.this.release(this.pendingEnd);
+                        this.pendingEnd = null;
+                        this.mark(this.endSerial);
+                    }
+                } else if (length < this.payloadSize) {
+                    throw new IllegalArgumentException("Invalid chunk: Chunk smaller than previous chunks");
+                }
+                this.write(serial, payload);
+            }
+
+            // Mark as received (a pending end chunk is marked once its offset is known)
+            if (this.pendingEnd == null) {
+                this.mark(serial);
+            }
+            this.count++;
+            this.lastUpdate = System.nanoTime();
+            this.stallReported = false;
+        }
+
+        /**
+         * Mark a chunk as received, growing the bitmap if necessary.
+         *
+         * The offset of the chunk must have been validated, which bounds
+         * the bitmap to an eighth of the maximum message length.
+         *
+         * @throws MemoryBudgetExceededException if the bitmap cannot grow.
+         */
+        private void mark(long serial) {
+            final int index = (int) (serial >>> 6);
+            if (index >= this.received.length) {
+                final int length = Math.max(index + 1, this.received.length * 2);
+                Unchunker.this.reserve(8L * (length - this.received.length));
+                this.received = Arrays.copyOf(this.received, length);
+            }
+            this.received[index] |= 1L << serial;
+            this.maxSerial = Math.max(this.maxSerial, serial);
+        }
+
+        /**
+         * Return the offset directly behind a chunk with the specified serial and length.
+         *
+         * @throws BufferOverflowException if the chunk is larger than the other chunks
+         *         or if the message would be too large.
+         */
+        private int offset(long serial, int length) {
+            if (length > this.payloadSize) {
+                throw new BufferOverflowException();
+            }
+            final long offset = serial * this.payloadSize + length;
+            if (offset > Unchunker.this.maxMessageLength) {
+                throw new BufferOverflowException();
+            }
+            return (int) offset;
+        }
+
+        /**
+         * Write a payload to the offset of the specified serial, growing the buffer if necessary.
+         */
+        private void write(long serial, ByteBuffer payload) {
+            final int end = this.offset(serial, payload.remaining());
+            if (end > this.data.length) {
+                // Grow to the exact size once it is known, double otherwise
+                int capacity = this.messageLength >= 0
+                    ? this.messageLength
+                    : (int) Math.min(Unchunker.this.maxMessageLength, Math.max(end, 2L * this.data.length));
+                if (capacity > end && !Unchunker.this.canAllocate(capacity)) {
+                    // Memory is tight, only grow as far as needed
+                    capacity = end;
+                }
+                final byte[] grown = Unchunker.this.allocate(capacity);
+                final ForkJoinPool pool = Unchunker.this.copyPool;
+                if (pool != null && this.data.length >= Unchunker.this.copyThreshold) {
+                    final int grain = Math.max(1, this.data.length / (pool.getParallelism() * 4));
+                    pool.invoke(new CopyTask(this.data, grown, 0, this.data.length, grain));
+                } else {
+                    System.arraycopy(this.data, 0, grown, 0, this.data.length);
+                }
+                Unchunker.this.release(this.data);
+                this.data = grown;
+            }
+            payload.get(this.data, end - payload.remaining(), payload.remaining());
+        }
+
+        /**
+         * Return the number of bytes written by `checkpoint`.
+         */
+        public int checkpointLength() {
+            long length = 1 + 4 + 4 + 4 + 4 + (long) this.bitmapLength() * 8 + 4;
+            for (long serial = 0; serial <= this.maxSerial; serial++) {
+                if (this.hasChunk(serial)) {
+                    length += this.chunkLength(serial);
+                }
+            }
+            if (this.pendingEnd != null) {
+                length += this.pendingEndLength;
+            }
+            if (this.parities != null) {
+                for (Parity parity : this.parities.values()) {
+                    length += 4 + 1 + 4 + Common.PARITY_HEADER_LENGTH + parity.length;
+                }
+            }
+            if (length > Integer.MAX_VALUE) {
+                throw new BufferOverflowException();
+            }
+            return (int) length;
+        }
+
+        /**
+         * Return the number of bitmap words up to the highest received serial.
+         */
+        private int bitmapLength() {
+            return this.maxSerial < 0 ? 0 : (int) (this.maxSerial >>> 6) + 1;
+        }
+
+        /**
+         * Write the state of this message to a checkpoint, see `restore`.
+         */
+        public void checkpoint(ByteBuffer out) {
+            byte flags = 0;
+            if (this.payloadSize >= 0) {
+                flags |= CHECKPOINT_PAYLOAD_SIZE;
+            }
+            if (this.endSerial >= 0) {
+                flags |= CHECKPOINT_END;
+            }
+            out.put(flags);
+            out.putInt(Math.max(this.payloadSize, 0));
+            out.putInt(this.endSerial >= 0 ? UnsignedHelper.getUnsignedInt(this.endSerial) : 0);
+            out.putInt(this.endSerial >= 0 ? this.chunkLength(this.endSerial) : 0);
+
+            // Received serials, followed by their payloads
+            final int words = this.bitmapLength();
+            out.putInt(words);
+            for (int i = 0; i < words; i++) {
+                out.putLong(this.received[i]);
+            }
+            for (long serial = 0; serial <= this.maxSerial; serial++) {
+                if (this.hasChunk(serial)) {
+                    out.put(this.data, (int) (serial * this.payloadSize), this.chunkLength(serial));
+                }
+            }
+
+            // End chunk whose offset is not known yet
+            if (this.pendingEnd != null) {
+                out.put(this.pendingEnd, 0, this.pendingEndLength);
+            }
+
+            // Parity chunks, in the format they arrived in
+            out.putInt(this.parities == null ? 0 : this.parities.size());
+            if (this.parities != null) {
+                for (Map.Entry<Long, Parity> entry : this.parities.entrySet()) {
+                    final Parity parity = entry.getValue();
+                    out.putInt(UnsignedHelper.getUnsignedInt(entry.getKey()));
+                    out.put(parity.end ? (byte) 1 : (byte) 0);
+                    out.putInt(Common.PARITY_HEADER_LENGTH + parity.length);
+                    out.putInt(UnsignedHelper.getUnsignedInt(parity.count));
+                    out.putInt(parity.lengthXor);
+                    out.put(parity.data, 0, parity.length);
+                }
+            }
+        }
+
+        /**
+         * Restore the state of a message from a checkpoint written by `checkpoint`.
+         *
+         * @throws IllegalArgumentException if the checkpoint is invalid.
+         * @throws java.nio.BufferUnderflowException if the checkpoint is truncated.
+         * @throws MemoryBudgetExceededException if the buffers cannot be allocated.
+         */
+        public void restore(ByteBuffer in) {
+            final byte flags = in.get();
+            final int payloadSize = in.getInt();
+            final long endSerial = UnsignedHelper.readUnsignedInt(in.getInt());
+            final int endLength = in.getInt();
+            final boolean endKnown = (flags & CHECKPOINT_END) != 0;
+            final boolean payloadSizeKnown = (flags & CHECKPOINT_PAYLOAD_SIZE) != 0;
+            if (payloadSize < 0 || endLength < 0) {
+                throw new IllegalArgumentException("Invalid checkpoint: Negative length");
+            }
+
+            // Received serials and their payloads
+            final int words = in.getInt();
+            if (words < 0 || words > in.remaining() / 8) {
+                throw new IllegalArgumentException("Invalid checkpoint: Invalid bitmap length");
+            }
+            final long[] received = new long[words];
+            for (int i = 0; i < words; i++) {
+                received[i] = in.getLong();
+            }
+            final BitSet serials = BitSet.valueOf(received);
+            for (int serial = serials.nextSetBit(0); serial >= 0; serial = serials.nextSetBit(serial + 1)) {
+                final boolean end = endKnown && serial == endSerial;
+                if (!end && !payloadSizeKnown) {
+                    throw new IllegalArgumentException("Invalid checkpoint: Unknown payload size");
+                }
+                final int length = end ? endLength : payloadSize;
+                if (length > in.remaining()) {
+                    throw new BufferUnderflowException();
+                }
+                final ByteBuffer payload = in.duplicate();
+                payload.limit(in.position() + length);
+                in.position(in.position() + length);
+                this.putChunk(serial, end, payload);
+            }
+            if (endKnown && this.endSerial < 0 && !payloadSizeKnown) {
+                if (endLength > in.remaining()) {
+                    throw new BufferUnderflowException();
+                }
+                final ByteBuffer payload = in.duplicate();
+                payload.limit(in.position() + endLength);
+                in.position(in.position() + endLength);
+                this.putChunk(endSerial, true, payload);
+            }
+            if (endKnown && this.endSerial != endSerial) {
+                throw new IllegalArgumentException("Invalid checkpoint: End chunk missing");
+            }
+
+            // Parity chunks
+            final int parities = in.getInt();
+            for (int i = 0; i < parities; i++) {
+                final long start = UnsignedHelper.readUnsignedInt(in.getInt());
+                final boolean end = in.get() != 0;
+                final int length = in.getInt();
+                if (length < 0 || length > in.remaining()) {
+                    throw new BufferUnderflowException();
+                }
+                final ByteBuffer payload = in.duplicate();
+                payload.limit(in.position() + length);
+                in.position(in.position() + length);
+                this.addParity(start, end, payload);
+            }
+        }
+
+        /**
+         * Return the chunks missing from this message.
+         */
+        public MissingChunks missing(long id) {
+            final long highest = this.endSerial >= 0 ? this.endSerial : this.maxSerial;
+            final BitSet missing = BitSet.valueOf(this.received);
+            // Serials are bounded by the maximum message length, clamp anyway
+            missing.flip(0, (int) Math.min(highest + 1, Integer.MAX_VALUE));
+            if (this.pendingEnd != null) {
+                missing.clear((int) this.endSerial);
+            }
+            return new MissingChunks(id, missing, highest, this.endSerial >= 0);
+        }
+
+        /**
+         * Release all buffers of this message.
+         */
+        public void release() {
+            Unchunker.this.release(this.data);
+            this.data = EMPTY;
+            Unchunker.this.reserve(-8L * (this.received.length - 1));
+            this.received = new long[1];
+            if (this.pendingEnd != null) {
+                Unchunker.this.release(this.pendingEnd);
+                this.pendingEnd = null;
+            }
+            if (this.parities != null) {
+                for (Parity parity : this.parities.values()) {
+                    Unchunker.this.release(parity.data);
+                }
+                this.parities = null;
             }
         }
 
@@ -52,36 +553,21 @@ public class Unchunker {
          * Return whether the message is complete, meaning that all chunks of the message arrived.
          */
         public boolean isComplete() {
-            return this.endArrived && this.chunks.size() == this.messageLength;
+            return this.messageLength >= 0 && this.count == this.endSerial + 1;
         }
 
         /**
-         * Merge the messages.
-         *
-         * Note: This implementation assumes that no chunk will be larger than the first one!
-         * If this is not the case, a `BufferOverflowException` may be thrown.
+         * Return the assembled message.
          *
          * @return A `ByteBuffer` containing the assembled message.
          * @throws IllegalStateException if message is not yet complete.
          */
-        public ByteBuffer merge() {
+        public ByteBuffer message() {
             // Preconditions
             if (!this.isComplete()) {
                 throw new IllegalStateException("Not all chunks for this message have arrived yet.");
             }
-
-            // Allocate buffer
-            final long capacity = this.chunks.first().getData().length * this.messageLength;
-            final ByteBuffer buf = ByteBuffer.allocate(
-                    capacity > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) capacity);
-
-            // Add chunks to buffer
-            for (Chunk chunk : this.chunks) {
-                buf.put(chunk.getData());
-            }
-
-            buf.flip();
-            return buf;
+            return ByteBuffer.wrap(this.data, 0, this.messageLength);
         }
 
         /**
@@ -93,8 +579,257 @@ public class Unchunker {
         }
     }
 
+    /**
+     * A parity chunk waiting for its group to complete.
+     */
+    private static class Parity {
+        final long count;
+        final boolean end;
+        final int lengthXor;
+        final byte[] data;
+        final int length;
+
+        Parity(long count, boolean end, int lengthXor, byte[] data, int length) {
+            this.count = count;
+            this.end = end;
+            this.lengthXor = lengthXor;
+            this.data = data;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Thrown when a message buffer would exceed the memory budget.
+     */
+    private static class MemoryBudgetExceededException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        MemoryBudgetExceededException() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * Copy a range of an array to the same range of another array,
+     * splitting the range until it is at most `grain` bytes long.
+     */
+    private static class CopyTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] src;
+        private final byte[] dest;
+        private final int from;
+        private final int to;
+        private final int grain;
+
+        CopyTask(byte[] src, byte[] dest, int from, int to, int grain) {
+            this.src = src;
+            this.dest = dest;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from <= this.grain) {
+                System.arraycopy(this.src, this.from, this.dest, this.from, this.to - this.from);
+            } else {
+                final int middle = (this.from + this.to) >>> 1;
+                invokeAll(
+                    new CopyTask(this.src, this.dest, this.from, middle, this.grain),
+                    new CopyTask(this.src, this.dest, middle, this.to, this.grain)
+                );
+            }
+        }
+    }
+
+    /**
+     * Sliding window over the most recently completed message ids.
+     *
+     * Ids are compared using serial number arithmetic on 32 bit, so the
+     * window keeps working when message ids wrap around. Ids that fall
+     * behind the window are forgotten.
+     */
+    private static class CompletedIds {
+        private static final long ID_MASK = 0xFFFFFFFFL;
+        private final long[] bits;
+        private final int size;
+        private long highest = -1;
+
+        private static final int MAX_SIZE = 1 << 30;
+
+        CompletedIds(int size) {
+            // Round up to a power of two (and at least 64), so that the slots
+            // of ids on both sides of the 32 bit wraparound don't collide
+            this.size = Math.max(64, Integer.highestOneBit(size - 1) << 1);
+            this.bits = new long[this.size >>> 6];
+        }
+
+        /**
+         * Return whether the message with the specified id was recently completed.
+         */
+        boolean contains(long id) {
+            if (this.highest < 0) {
+                return false;
+            }
+            final long behind = (this.highest - id) & ID_MASK;
+            return behind < this.size && this.isSet(id);
+        }
+
+        /**
+         * Mark the message with the specified id as completed.
+         */
+        void add(long id) {
+            if (this.highest < 0) {
+                this.highest = id;
+            } else {
+                final long behind = (this.highest - id) & ID_MASK;
+                if (behind >= (1L << 31)) {
+                    // Id is ahead of the window: Slide forward, forget skipped ids
+                    final long ahead = (id - this.highest) & ID_MASK;
+                    if (ahead >= this.size) {
+                        Arrays.fill(this.bits, 0L);
+                    } else {
+                        for (long i = 1; i <= ahead; i++) {
+                            this.clear((this.highest + i) & ID_MASK);
+                        }
+                    }
+                    this.highest = id;
+                } else if (behind >= this.size) {
+                    // Id is too old to be tracked
+                    return;
+                }
+            }
+            this.bits[this.index(id)] |= this.mask(id);
+        }
+
+        /**
+         * Mark all ids of another window as completed, oldest first.
+         */
+        void addAll(CompletedIds other) {
+            if (other.highest < 0) {
+                return;
+            }
+            for (long behind = other.size - 1; behind >= 0; behind--) {
+                final long id = (other.highest - behind) & ID_MASK;
+                if (other.isSet(id)) {
+                    this.add(id);
+                }
+            }
+        }
+
+        /**
+         * Return the number of bytes written by `checkpoint`.
+         */
+        int checkpointLength() {
+            return this.highest < 0 ? 4 : 4 + 4 + this.bits.length * 8;
+        }
+
+        /**
+         * Write the window to a checkpoint, see `restore`.
+         */
+        void checkpoint(ByteBuffer out) {
+            if (this.highest < 0) {
+                out.putInt(0);
+                return;
+            }
+            out.putInt(this.bits.length);
+            out.putInt(UnsignedHelper.getUnsignedInt(this.highest));
+            for (long word : this.bits) {
+                out.putLong(word);
+            }
+        }
+
+        /**
+         * Read a window written by `checkpoint`.
+         *
+         * @return the window, or `null` if it was empty.
+         * @throws IllegalArgumentException if the window is invalid.
+         * @throws java.nio.BufferUnderflowException if the checkpoint is truncated.
+         */
+        static CompletedIds restore(ByteBuffer in) {
+            final int words = in.getInt();
+            if (words == 0) {
+                return null;
+            }
+            if (words < 0 || words > MAX_SIZE >>> 6 || Integer.bitCount(words) != 1
+                    || words > (in.remaining() - 4) / 8) {
+                throw new IllegalArgumentException("Invalid checkpoint: Invalid completed id window");
+            }
+            final CompletedIds window = new CompletedIds(words << 6);
+            window.highest = UnsignedHelper.readUnsignedInt(in.getInt());
+            for (int i = 0; i < words; i++) {
+                window.bits[i] = in.getLong();
+            }
+            return window;
+        }
+
+        private boolean isSet(long id) {
+            return (this.bits[this.index(id)] & this.mask(id)) != 0;
+        }
+
+        private void clear(long id) {
+            this.bits[this.index(id)] &= ~this.mask(id);
+        }
+
+        private int index(long id) {
+            return (int) ((id & (this.size - 1)) >>> 6);
+        }
+
+        private long mask(long id) {
+            return 1L << (id & 63);
+        }
+    }
+
     private Map<Long, ChunkCollector> chunks = new HashMap<>();
+    private final CompletedIds completed;
     private MessageListener listener = null;
+    private StallListener stallListener = null;
+    private ForkJoinPool copyPool = null;
+    private long copyThreshold = 0;
+    private BufferPool bufferPool = null;
+    private long bufferedBytes = 0;
+    private long maxBufferedBytes = Long.MAX_VALUE;
+    private MemoryBudget memoryBudget = null;
+    private long droppedMessages = 0;
+    private boolean closed = false;
+    private int maxMessageLength = DEFAULT_MAX_MESSAGE_LENGTH;
+
+    /**
+     * Create an Unchunker instance that remembers the last
+     * {@link #DEFAULT_COMPLETED_ID_WINDOW} completed message ids.
+     */
+    public Unchunker() {
+        this(DEFAULT_COMPLETED_ID_WINDOW);
+    }
+
+    /**
+     * Create an Unchunker instance.
+     *
+     * Chunks arriving for one of the last `completedIdWindow` completed
+     * messages are dropped instead of starting a new message. Message ids
+     * must therefore not be reused within that window.
+     *
+     * If the window is disabled, a parity chunk cannot be told apart from
+     * a late parity chunk of a completed message. It is therefore dropped
+     * unless another chunk of its message has already arrived.
+     *
+     * @param completedIdWindow Number of completed message ids to remember,
+     *                          rounded up to a power of two (at least 64).
+     *                          Use 0 to disable.
+     * @throws IllegalArgumentException if the window size is negative or
+     *         larger than 2**30
+     */
+    public Unchunker(int completedIdWindow) {
+        if (completedIdWindow < 0) {
+            throw new IllegalArgumentException("Completed id window may not be negative");
+        }
+        if (completedIdWindow > CompletedIds.MAX_SIZE) {
+            throw new IllegalArgumentException("Completed id window may not be larger than 2**30");
+        }
+        this.completed = completedIdWindow == 0 ? null : new CompletedIds(completedIdWindow);
+    }
 
     /**
      * Register an onMessage listener.
@@ -103,48 +838,327 @@ public class Unchunker {
         this.listener = listener;
     }
 
+    /**
+     * Register an onStall listener, see `checkStalled`.
+     */
+    public void onStall(StallListener listener) {
+        this.stallListener = listener;
+    }
+
+    /**
+     * Copy large reassembly buffers in parallel.
+     *
+     * Chunks are written to their offset in the message buffer as they
+     * arrive. Until the end chunk shows the message length, that buffer
+     * grows by copying it into a larger one. For buffers of at least
+     * `threshold` bytes, this copy is split up and run on the specified pool.
+     * Note that `add` blocks until the copy is done.
+     *
+     * @param pool The pool to run the copy on, or `null` to always copy on
+     *             the thread that added the chunk.
+     * @param threshold Minimum buffer size in bytes.
+     * @throws IllegalArgumentException if threshold is negative
+     */
+    public synchronized void setParallelCopy(ForkJoinPool pool, long threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Threshold may not be negative");
+        }
+        this.copyPool = pool;
+        this.copyThreshold = threshold;
+    }
+
+    /**
+     * Take message buffers from a pool.
+     *
+     * Buffers of incomplete messages are returned to the pool when they are
+     * removed. Buffers of complete messages are returned to the pool as soon
+     * as the message listener returns, so the listener must not keep a
+     * reference to the message buffer.
+     *
+     * @param pool The pool to use, or `null` to allocate new buffers.
+     */
+    public synchronized void setBufferPool(BufferPool pool) {
+        this.bufferPool = pool;
+    }
+
+    /**
+     * Limit the number of bytes allocated for incomplete messages.
+     *
+     * If a message buffer would need to grow beyond this limit, the message
+     * is dropped (see `getDroppedMessageCount`). If more bytes than that are already allocated, the least
+     * recently updated messages are dropped right away.
+     *
+     * @param maxBufferedBytes The maximum number of bytes, or `Long.MAX_VALUE`
+     *                         for no limit.
+     * @throws IllegalArgumentException if the limit is negative
+     */
+    public synchronized void setMaxBufferedBytes(long maxBufferedBytes) {
+        if (maxBufferedBytes < 0) {
+            throw new IllegalArgumentException("Limit may not be negative");
+        }
+        this.maxBufferedBytes = maxBufferedBytes;
+        while (this.bufferedBytes > maxBufferedBytes) {
+            Map.Entry<Long, ChunkCollector> oldest = null;
+            for (Map.Entry<Long, ChunkCollector> entry : this.chunks.entrySet()) {
+                if (oldest == null || entry.getValue().lastUpdate - oldest.getValue().lastUpdate < 0) {
+                    oldest = entry;
+                }
+            }
+            if (oldest == null) {
+                // Only messages that are being delivered are left
+                break;
+            }
+            oldest.getValue().release();
+            this.chunks.remove(oldest.getKey());
+            this.droppedMessages++;
+        }
+    }
+
+    /**
+     * Share a memory budget with other Unchunker instances, in addition
+     * to the limit of this instance. Must be set before adding chunks.
+     */
+    synchronized void setMemoryBudget(MemoryBudget budget) {
+        this.memoryBudget = budget;
+    }
+
+    /**
+     * Limit the length of reassembled messages.
+     *
+     * Chunks of a message that would exceed this length are rejected with a
+     * `BufferOverflowException` before any buffer is grown for them.
+     * Defaults to {@link #DEFAULT_MAX_MESSAGE_LENGTH}.
+     *
+     * @param maxMessageLength The maximum message length in bytes.
+     * @throws IllegalArgumentException if the limit is negative or larger
+     *         than the largest possible array
+     */
+    public synchronized void setMaxMessageLength(int maxMessageLength) {
+        if (maxMessageLength < 0 || maxMessageLength > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Invalid maximum message length");
+        }
+        this.maxMessageLength = maxMessageLength;
+    }
+
     /**
      * Add a chunk.
      *
      * @param buf ByteBuffer containing chunk with 9 byte header.
      * @throws IllegalArgumentException if message is smaller than the header length
      */
-    public synchronized void add(ByteBuffer buf) {
-        final Chunk chunk = new Chunk(buf);
+    public void add(ByteBuffer buf) {
+        final Instrumentation instrumentation = Instrumentation.installed;
+        if (instrumentation == null) {
+            synchronized (this) {
+                this.addLocked(buf, null);
+            }
+        } else {
+            final long start = System.nanoTime();
+            synchronized (this) {
+                instrumentation.lockWait(System.nanoTime() - start);
+                this.addLocked(buf, instrumentation);
+            }
+        }
+    }
+
+    /**
+     * Add a chunk while holding the lock.
+     *
+     * @param instrumentation The installed instrumentation, may be `null`.
+     */
+    private void addLocked(ByteBuffer buf, Instrumentation instrumentation) {
+        final int chunkLength = buf.remaining();
+        if (chunkLength < Common.HEADER_LENGTH) {
+            throw new IllegalArgumentException("Invalid chunk: Too short");
+        }
+        if (this.closed) {
+            buf.position(buf.limit());
+            return;
+        }
+
+        // Read header
+        final byte options = buf.get();
+        final boolean endOfMessage = (options & Common.OPTION_END_OF_MESSAGE) != 0;
+        final boolean parity = (options & Common.OPTION_PARITY) != 0;
+        final boolean batch = (options & Common.OPTION_BATCH) != 0;
+        final long id = UnsignedHelper.readUnsignedInt(buf.getInt());
+        final long serial = UnsignedHelper.readUnsignedInt(buf.getInt());
+        if (batch && (parity || !endOfMessage || serial != 0)) {
+            throw new IllegalArgumentException("Invalid chunk: Batch must be a single chunk");
+        }
+
+        // Drop late chunks of completed messages
+        if (this.completed != null && this.completed.contains(id)) {
+            buf.position(buf.limit());
+            if (instrumentation != null) {
+                instrumentation.duplicateDropped(id, serial);
+            }
+            return;
+        }
 
         // Ignore repeated chunks with the same serial
-        if (this.chunks.containsKey(chunk.getId())) {
-            for (Chunk item : this.chunks.get(chunk.getId()).chunks) {
-                if (item.getSerial() == chunk.getSerial()) {
-                    return;
-                }
+        ChunkCollector collector = this.chunks.get(id);
+        if (collector != null && (parity ? collector.hasParity(serial) : collector.hasChunk(serial))) {
+            buf.position(buf.limit());
+            if (instrumentation != null) {
+                instrumentation.duplicateDropped(id, serial);
             }
+            return;
+        }
+        if (instrumentation != null) {
+            instrumentation.chunkReceived(id, serial, chunkLength, parity);
+        }
+
+        // Without the completed id window, a parity chunk of an unknown message
+        // is most likely the late parity of a completed one
+        if (parity && collector == null && this.completed == null) {
+            buf.position(buf.limit());
+            if (instrumentation != null) {
+                instrumentation.duplicateDropped(id, serial);
+            }
+            return;
         }
 
         // If this is the only chunk in the message, return it immediately.
-        if (chunk.isEndOfMessage() && chunk.getSerial() == 0) {
-            this.notifyListener(ByteBuffer.wrap(chunk.getData()));
-            this.chunks.remove(chunk.getId());
+        if (!parity && endOfMessage && serial == 0) {
+            final byte[] data = new byte[buf.remaining()];
+            buf.get(data);
+            if (batch) {
+                this.checkBatch(data);
+            }
+            if (collector != null) {
+                collector.release();
+                this.chunks.remove(id);
+            }
+            this.markCompleted(id);
+            if (instrumentation != null) {
+                instrumentation.messageCompleted(id, 0, 1, data.length);
+            }
+            if (batch) {
+                this.notifyBatch(data);
+            } else {
+                this.notifyListener(ByteBuffer.wrap(data));
+            }
             return;
         }
 
-        // Otherwise, add chunk to chunks list
-        final long id = chunk.getId();
-        final ChunkCollector collector;
-        if (this.chunks.containsKey(id)) {
-            collector = this.chunks.get(id);
-        } else {
+        // Otherwise, write chunk to its collector
+        final boolean added = collector == null;
+        if (added) {
             collector = new ChunkCollector();
+        }
+        try {
+            if (parity) {
+                collector.addParity(serial, endOfMessage, buf);
+            } else {
+                collector.addChunk(serial, endOfMessage, buf);
+            }
+        } catch (MemoryBudgetExceededException e) {
+            // Drop the message
+            buf.position(buf.limit());
+            collector.release();
+            this.chunks.remove(id);
+            this.droppedMessages++;
+            return;
+        } catch (RuntimeException e) {
+            if (added) {
+                collector.release();
+            }
+            throw e;
+        }
+        if (added) {
             this.chunks.put(id, collector);
         }
-        collector.addChunk(chunk);
 
         // Check if message is complete
         if (collector.isComplete()) {
-            // Merge and notify listener...
-            this.notifyListener(collector.merge());
-            // ...then delete the chunks.
+            // Notify listener...
             this.chunks.remove(id);
+            this.markCompleted(id);
+            if (instrumentation != null) {
+                instrumentation.messageCompleted(id, System.nanoTime() - collector.created,
+                        collector.endSerial + 1, collector.messageLength);
+            }
+            try {
+                this.notifyListener(collector.message());
+            } finally {
+                // ...then release the buffer.
+                collector.release();
+            }
+        }
+    }
+
+    /**
+     * Allocate a buffer of at least the specified length for an incomplete message.
+     *
+     * @throws MemoryBudgetExceededException if the buffer would exceed the memory budget.
+     */
+    private byte[] allocate(int length) {
+        // Pooled arrays may be longer than requested
+        final int capacity = this.bufferPool != null ? this.bufferPool.capacity(length) : length;
+        if (capacity > this.maxBufferedBytes - this.bufferedBytes) {
+            throw new MemoryBudgetExceededException();
+        }
+        if (this.memoryBudget != null && !this.memoryBudget.tryReserve(capacity)) {
+            throw new MemoryBudgetExceededException();
+        }
+        final byte[] buf = this.bufferPool != null ? this.bufferPool.acquire(length) : new byte[length];
+        this.bufferedBytes += buf.length;
+        return buf;
+    }
+
+    /**
+     * Return whether a buffer of the specified length would currently fit
+     * into the memory budget.
+     */
+    private boolean canAllocate(int length) {
+        final int capacity = this.bufferPool != null ? this.bufferPool.capacity(length) : length;
+        return capacity <= this.maxBufferedBytes - this.bufferedBytes
+            && (this.memoryBudget == null || capacity <= this.memoryBudget.getAvailableBytes());
+    }
+
+    /**
+     * Account for memory of an incomplete message that is not a buffer,
+     * or give it back when negative.
+     *
+     * @throws MemoryBudgetExceededException if this would exceed the memory budget.
+     */
+    private void reserve(long bytes) {
+        if (bytes > 0) {
+            if (bytes > this.maxBufferedBytes - this.bufferedBytes) {
+                throw new MemoryBudgetExceededException();
+            }
+            if (this.memoryBudget != null && !this.memoryBudget.tryReserve(bytes)) {
+                throw new MemoryBudgetExceededException();
+            }
+        } else if (this.memoryBudget != null) {
+            this.memoryBudget.release(-bytes);
+        }
+        this.bufferedBytes += bytes;
+    }
+
+    /**
+     * Release a buffer allocated with `allocate`.
+     */
+    private void release(byte[] buf) {
+        if (buf.length == 0) {
+            return;
+        }
+        this.bufferedBytes -= buf.length;
+        if (this.memoryBudget != null) {
+            this.memoryBudget.release(buf.length);
+        }
+        if (this.bufferPool != null) {
+            this.bufferPool.release(buf);
+        }
+    }
+
+    /**
+     * Remember that the message with the specified id was completed.
+     */
+    private void markCompleted(long id) {
+        if (this.completed != null) {
+            this.completed.add(id);
         }
     }
 
@@ -157,6 +1171,274 @@ public class Unchunker {
         }
     }
 
+    /**
+     * Check the framing of the messages in a batch chunk.
+     *
+     * @throws IllegalArgumentException if a message exceeds the batch.
+     */
+    private void checkBatch(byte[] data) {
+        int offset = 0;
+        while (offset < data.length) {
+            if (data.length - offset < 2) {
+                throw new IllegalArgumentException("Invalid chunk: Truncated batch");
+            }
+            offset += 2 + (((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF));
+            if (offset > data.length) {
+                throw new IllegalArgumentException("Invalid chunk: Truncated batch");
+            }
+        }
+    }
+
+    /**
+     * Notify the message listener about each message in a batch chunk.
+     */
+    private void notifyBatch(byte[] data) {
+        int offset = 0;
+        while (offset < data.length) {
+            final int length = ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+            offset += 2;
+            this.notifyListener(ByteBuffer.wrap(data, offset, length).slice());
+            offset += length;
+        }
+    }
+
+    /**
+     * Return the ids of all incomplete messages.
+     */
+    public synchronized long[] getPendingIds() {
+        final long[] ids = new long[this.chunks.size()];
+        int i = 0;
+        for (Long id : this.chunks.keySet()) {
+            ids[i++] = id;
+        }
+        return ids;
+    }
+
+    /**
+     * Return the chunks missing from an incomplete message.
+     *
+     * @param id The message id.
+     * @return the missing chunks, or `null` if there is no incomplete message
+     *         with the specified id.
+     */
+    public synchronized MissingChunks getMissingChunks(long id) {
+        final ChunkCollector collector = this.chunks.get(id);
+        return collector == null ? null : collector.missing(id);
+    }
+
+    /**
+     * Notify the stall listener about incomplete messages that haven't been
+     * updated for more than the specified number of milliseconds.
+     *
+     * Each message is reported only once until it is updated again. Call
+     * this method regularly (with a lower threshold than `gc`) to request
+     * the retransmission of missing chunks.
+     *
+     * @param maxIdle Report incomplete messages that haven't been updated for
+     *                more than the specified number of milliseconds.
+     * @return the number of stalled messages reported.
+     */
+    public synchronized int checkStalled(long maxIdle) {
+        int stalled = 0;
+        for (Map.Entry<Long, ChunkCollector> entry : this.chunks.entrySet()) {
+            final ChunkCollector collector = entry.getValue();
+            if (!collector.stallReported && collector.isOlderThan(maxIdle)) {
+                collector.stallReported = true;
+                stalled++;
+                if (this.stallListener != null) {
+                    this.stallListener.onStall(collector.missing(entry.getKey()));
+                }
+            }
+        }
+        return stalled;
+    }
+
+    /**
+     * Write the state of all incomplete messages to a checkpoint.
+     *
+     * The checkpoint contains the ids, the received serials, the payloads
+     * and the pending parity chunks of all incomplete messages, as well as
+     * the ids of recently completed messages. After a
+     * reconnect, it can be passed to `restore` (of this or another Unchunker
+     * instance), so the sender only needs to retransmit the missing chunks
+     * (see `getMissingChunks`).
+     *
+     * The incomplete messages are not removed.
+     *
+     * @return a ByteBuffer containing the checkpoint.
+     * @throws BufferOverflowException if the checkpoint would be larger than 2 GiB.
+     */
+    public synchronized ByteBuffer checkpoint() {
+        long length = 1 + (this.completed != null ? this.completed.checkpointLength() : 4) + 4;
+        for (ChunkCollector collector : this.chunks.values()) {
+            length += 4 + 4 + collector.checkpointLength();
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new BufferOverflowException();
+        }
+        final ByteBuffer out = ByteBuffer.allocate((int) length);
+        out.put(CHECKPOINT_VERSION);
+        if (this.completed != null) {
+            this.completed.checkpoint(out);
+        } else {
+            out.putInt(0);
+        }
+        out.putInt(this.chunks.size());
+        for (Map.Entry<Long, ChunkCollector> entry : this.chunks.entrySet()) {
+            final ChunkCollector collector = entry.getValue();
+            out.putInt(UnsignedHelper.getUnsignedInt(entry.getKey()));
+            out.putInt(collector.checkpointLength());
+            collector.checkpoint(out);
+        }
+        return (ByteBuffer) out.flip();
+    }
+
+    /**
+     * Restore incomplete messages from a checkpoint written by `checkpoint`.
+     *
+     * Messages that are already pending or that were recently completed
+     * are skipped, as are messages that would exceed the memory budget.
+     * The recently completed ids of the checkpoint are added to those of
+     * this instance, so late chunks of these messages are dropped. New
+     * messages with these ids are dropped as well, so the sender must not
+     * reuse them: A `ChunkerSession` must continue at the `getNextId()` of
+     * the session used before the checkpoint.
+     * If the checkpoint is invalid, no message is restored.
+     *
+     * @param checkpoint ByteBuffer containing the checkpoint, will be consumed.
+     * @return the number of restored messages.
+     * @throws IllegalArgumentException if the checkpoint is invalid.
+     */
+    public synchronized int restore(ByteBuffer checkpoint) {
+        if (this.closed) {
+            checkpoint.position(checkpoint.limit());
+            return 0;
+        }
+        final Map<Long, ChunkCollector> restored = new HashMap<>();
+        final CompletedIds window;
+        try {
+            if (checkpoint.get() != CHECKPOINT_VERSION) {
+                throw new IllegalArgumentException("Invalid checkpoint: Unknown version");
+            }
+            window = CompletedIds.restore(checkpoint);
+            final long messages = UnsignedHelper.readUnsignedInt(checkpoint.getInt());
+            for (long i = 0; i < messages; i++) {
+                final long id = UnsignedHelper.readUnsignedInt(checkpoint.getInt());
+                final int length = checkpoint.getInt();
+                if (length < 0 || length > checkpoint.remaining()) {
+                    throw new BufferUnderflowException();
+                }
+                final ByteBuffer record = checkpoint.duplicate();
+                record.limit(checkpoint.position() + length);
+                checkpoint.position(checkpoint.position() + length);
+                if (this.chunks.containsKey(id) || restored.containsKey(id)
+                        || (this.completed != null && this.completed.contains(id))
+                        || (window != null && window.contains(id))) {
+                    continue;
+                }
+                final ChunkCollector collector = new ChunkCollector();
+                try {
+                    collector.restore(record);
+                } catch (MemoryBudgetExceededException e) {
+                    // Drop the message
+                    collector.release();
+                    continue;
+                } catch (RuntimeException e) {
+                    collector.release();
+                    throw e;
+                }
+                if (record.hasRemaining()) {
+                    collector.release();
+                    throw new IllegalArgumentException("Invalid checkpoint: Trailing data");
+                }
+                restored.put(id, collector);
+            }
+        } catch (BufferUnderflowException | BufferOverflowException | IllegalArgumentException e) {
+            for (ChunkCollector collector : restored.values()) {
+                collector.release();
+            }
+            if (e instanceof IllegalArgumentException) {
+                throw e;
+            }
+            throw new IllegalArgumentException("Invalid checkpoint: Truncated or too large", e);
+        }
+
+        // Drop late chunks of messages that were completed before the checkpoint
+        if (this.completed != null && window != null) {
+            this.completed.addAll(window);
+        }
+
+        // Deliver messages that have been completed by parity recovery
+        int count = 0;
+        final Iterator<Map.Entry<Long, ChunkCollector>> it = restored.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<Long, ChunkCollector> entry = it.next();
+            if (entry.getValue().isComplete()) {
+                this.markCompleted(entry.getKey());
+            } else {
+                this.chunks.put(entry.getKey(), entry.getValue());
+                it.remove();
+                count++;
+            }
+        }
+        for (ChunkCollector collector : restored.values()) {
+            try {
+                this.notifyListener(collector.message());
+            } finally {
+                collector.release();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Remove all incomplete messages.
+     *
+     * @return the number of removed chunks.
+     */
+    public synchronized int clear() {
+        int removedItems = 0;
+        for (ChunkCollector collector : this.chunks.values()) {
+            removedItems += collector.count;
+            collector.release();
+        }
+        this.chunks.clear();
+        return removedItems;
+    }
+
+    /**
+     * Return the number of incomplete messages that were dropped because
+     * they would have exceeded the memory budget.
+     */
+    public synchronized long getDroppedMessageCount() {
+        return this.droppedMessages;
+    }
+
+    /**
+     * Remove all incomplete messages and drop all chunks added later on,
+     * so this instance no longer takes memory from a shared budget.
+     *
+     * @return the number of removed chunks.
+     */
+    synchronized int close() {
+        this.closed = true;
+        return this.clear();
+    }
+
+    /**
+     * Return the number of incomplete messages.
+     */
+    public synchronized int getPendingMessageCount() {
+        return this.chunks.size();
+    }
+
+    /**
+     * Return the number of bytes allocated for incomplete messages.
+     */
+    public synchronized long getBufferedBytes() {
+        return this.bufferedBytes;
+    }
+
     /**
      * Run garbage collection, remove incomplete messages that haven't been
      * updated for more than the specified number of milliseconds.
@@ -169,12 +1451,17 @@ public class Unchunker {
      * @return the number of removed chunks.
      */
     public synchronized int gc(long maxAge) {
+        final Instrumentation instrumentation = Instrumentation.installed;
         final Iterator<Map.Entry<Long, ChunkCollector>> it = this.chunks.entrySet().iterator();
         int removedItems = 0;
         while (it.hasNext()) {
             Map.Entry<Long, ChunkCollector> entry = it.next();
             if (entry.getValue().isOlderThan(maxAge)) {
-                removedItems += entry.getValue().chunks.size();
+                if (instrumentation != null) {
+                    instrumentation.messageExpired(entry.getKey(), entry.getValue().count);
+                }
+                removedItems += entry.getValue().count;
+                entry.getValue().release();
                 it.remove();
             }
         }
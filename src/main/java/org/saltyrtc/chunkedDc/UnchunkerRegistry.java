@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2016 Threema GmbH / SaltyRTC Contributors
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+
+package org.saltyrtc.chunkedDc;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An UnchunkerRegistry hosts one Unchunker per peer or channel.
+ *
+ * All registered Unchunker instances share a single garbage collection
+ * timer, an optional buffer pool and a global memory budget. Memory is
+ * taken from the budget as it is needed, so a single active peer may use
+ * all of it, up to an optional per-peer limit. Messages that do not fit
+ * are dropped and counted, see `getDroppedMessageCount`.
+ *
+ * The registry never calls into an Unchunker while holding a lock, so
+ * message listeners may register and unregister peers.
+ *
+ * @param <K> The type of the key identifying a peer or channel.
+ */
+public class UnchunkerRegistry<K> {
+
+    private final ConcurrentMap<K, Unchunker> unchunkers = new ConcurrentHashMap<>();
+    private final MemoryBudget budget;
+    private final long maxPeerBufferedBytes;
+    private final BufferPool pool;
+    private final ScheduledFuture<?> gcTask;
+
+    /**
+     * Create an UnchunkerRegistry instance without a per-peer limit.
+     *
+     * Note: A single peer may use the whole memory budget and starve the
+     * other peers. To give each peer a fair share, pass a per-peer limit.
+     *
+     * @see #UnchunkerRegistry(ScheduledExecutorService, long, long, long, long, BufferPool)
+     */
+    public UnchunkerRegistry(ScheduledExecutorService timer, long gcInterval, long maxAge,
+                             long maxBufferedBytes, BufferPool pool) {
+        this(timer, gcInterval, maxAge, maxBufferedBytes, maxBufferedBytes, pool);
+    }
+
+    /**
+     * Create an UnchunkerRegistry instance.
+     *
+     * @param timer The executor to schedule garbage collection on.
+     * @param gcInterval Run garbage collection every `gcInterval` milliseconds.
+     * @param maxAge Remove incomplete messages that haven't been updated for
+     *               more than the specified number of milliseconds.
+     * @param maxBufferedBytes The global memory budget for incomplete messages.
+     * @param maxPeerBufferedBytes The part of the budget a single peer may use.
+     * @param pool The pool to take message buffers from, may be `null`.
+     *             See `Unchunker.setBufferPool` for the implications.
+     * @throws IllegalArgumentException if the interval is not positive
+     * @throws IllegalArgumentException if a memory limit is negative
+     */
+    public UnchunkerRegistry(ScheduledExecutorService timer, long gcInterval, final long maxAge,
+                             long maxBufferedBytes, long maxPeerBufferedBytes, BufferPool pool) {
+        if (gcInterval <= 0) {
+            throw new IllegalArgumentException("Garbage collection interval must be positive");
+        }
+        if (maxBufferedBytes < 0 || maxPeerBufferedBytes < 0) {
+            throw new IllegalArgumentException("Memory budget may not be negative");
+        }
+        this.budget = new MemoryBudget(maxBufferedBytes);
+        this.maxPeerBufferedBytes = maxPeerBufferedBytes;
+        this.pool = pool;
+        this.gcTask = timer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                UnchunkerRegistry.this.gc(maxAge);
+            }
+        }, gcInterval, gcInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Return the Unchunker for the specified key, creating it if necessary.
+     */
+    public Unchunker register(K key) {
+        final Unchunker existing = this.unchunkers.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        final Unchunker unchunker = new Unchunker();
+        unchunker.setBufferPool(this.pool);
+        unchunker.setMaxBufferedBytes(this.maxPeerBufferedBytes);
+        unchunker.setMemoryBudget(this.budget);
+        final Unchunker raced = this.unchunkers.putIfAbsent(key, unchunker);
+        return raced != null ? raced : unchunker;
+    }
+
+    /**
+     * Return the Unchunker for the specified key, or `null` if there is none.
+     */
+    public Unchunker get(K key) {
+        return this.unchunkers.get(key);
+    }
+
+    /**
+     * Remove the Unchunker for the specified key and drop its incomplete messages.
+     *
+     * Call this when a peer disconnects or a channel is closed. Chunks
+     * added to the removed Unchunker afterwards are dropped.
+     *
+     * @return the number of removed chunks.
+     */
+    public int unregister(K key) {
+        final Unchunker unchunker = this.unchunkers.remove(key);
+        if (unchunker == null) {
+            return 0;
+        }
+        return unchunker.close();
+    }
+
+    /**
+     * Run garbage collection on all registered Unchunker instances.
+     *
+     * This is done periodically, but can also be called manually.
+     *
+     * @return the number of removed chunks.
+     */
+    public int gc(long maxAge) {
+        int removedItems = 0;
+        for (Unchunker unchunker : this.unchunkers.values()) {
+            removedItems += unchunker.gc(maxAge);
+        }
+        return removedItems;
+    }
+
+    /**
+     * Return the number of registered Unchunker instances.
+     */
+    public int size() {
+        return this.unchunkers.size();
+    }
+
+    /**
+     * Return the number of bytes allocated for incomplete messages of all peers.
+     */
+    public long getBufferedBytes() {
+        long bytes = 0;
+        for (Unchunker unchunker : this.unchunkers.values()) {
+            bytes += unchunker.getBufferedBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Return the number of messages of all registered peers that were
+     * dropped because they would have exceeded the memory budget.
+     */
+    public long getDroppedMessageCount() {
+        long dropped = 0;
+        for (Unchunker unchunker : this.unchunkers.values()) {
+            dropped += unchunker.getDroppedMessageCount();
+        }
+        return dropped;
+    }
+
+    /**
+     * Stop garbage collection and remove all Unchunker instances.
+     */
+    public void close() {
+        this.gcTask.cancel(false);
+        for (K key : this.unchunkers.keySet()) {
+            this.unregister(key);
+        }
+    }
+
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2016 Threema GmbH / SaltyRTC Contributors
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+
+package org.saltyrtc.chunkedDc.tests;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.saltyrtc.chunkedDc.Chunker;
+import org.saltyrtc.chunkedDc.ChunkerSession;
+import org.saltyrtc.chunkedDc.Common;
+import org.saltyrtc.chunkedDc.Unchunker;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Allocation budgets for the hot paths.
+ *
+ * Measures the bytes allocated by the current thread per operation and
+ * fails if an operation allocates more than its budget. Budgets include
+ * some slack for object headers of different JVMs, but not for new
+ * per-chunk or per-message objects.
+ */
+public class AllocationTest {
+
+    private static final int CHUNK_SIZE = 1024;
+    private static final int PAYLOAD_SIZE = CHUNK_SIZE - Common.HEADER_LENGTH;
+    private static final int CHUNKS_PER_MESSAGE = 64;
+    private static final int MESSAGE_SIZE = PAYLOAD_SIZE * CHUNKS_PER_MESSAGE;
+    private static final int WARMUP = 2000;
+    private static final int ITERATIONS = 2000;
+
+    /**
+     * Per-object overhead allowed on top of the payload, in bytes.
+     */
+    private static final int OBJECT_SLACK = 128;
+
+    /**
+     * Bookkeeping allowed per reassembled message, in bytes.
+     */
+    private static final int MESSAGE_SLACK = 2048;
+
+    /**
+     * Count allocated bytes of the current thread.
+     */
+    private static class AllocationCounter {
+        private final com.sun.management.ThreadMXBean bean;
+        private final long threadId = Thread.currentThread().getId();
+        private long start;
+
+        AllocationCounter(com.sun.management.ThreadMXBean bean) {
+            this.bean = bean;
+        }
+
+        void start() {
+            this.start = this.bean.getThreadAllocatedBytes(this.threadId);
+        }
+
+        long stop() {
+            return this.bean.getThreadAllocatedBytes(this.threadId) - this.start;
+        }
+    }
+
+    /**
+     * A listener that does not allocate anything.
+     */
+    private static class CountingListener implements Unchunker.MessageListener {
+        int messages = 0;
+        @Override
+        public void onMessage(ByteBuffer message) {
+            this.messages++;
+        }
+    }
+
+    private AllocationCounter counter;
+    private final ByteBuffer message = ByteBuffer.allocate(MESSAGE_SIZE);
+    private final ByteBuffer[] chunks = new ByteBuffer[CHUNKS_PER_MESSAGE];
+    private long messageId = 0;
+
+    @Before
+    public void setUp() {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(sunBean.isThreadAllocatedMemorySupported());
+        sunBean.setThreadAllocatedMemoryEnabled(true);
+        this.counter = new AllocationCounter(sunBean);
+    }
+
+    /**
+     * Chunk the test message, using a new message id.
+     */
+    private void chunkMessage() {
+        this.message.clear();
+        final Chunker chunker = new Chunker(this.messageId++ & 0xFFFFFFFFL, this.message, CHUNK_SIZE);
+        for (int i = 0; i < CHUNKS_PER_MESSAGE; i++) {
+            this.chunks[i] = chunker.next();
+        }
+    }
+
+    private static void assertBudget(String operation, long allocated, long operations, long budget) {
+        final long perOperation = allocated / operations;
+        assertTrue(operation + " allocated " + perOperation + " bytes, budget is " + budget,
+                perOperation <= budget);
+    }
+
+    /**
+     * Chunker.next() allocates nothing but the chunk itself.
+     */
+    @Test
+    public void testChunkerNext() {
+        for (int i = 0; i < WARMUP; i++) {
+            this.chunkMessage();
+        }
+        this.counter.start();
+        for (int i = 0; i < ITERATIONS; i++) {
+            this.chunkMessage();
+        }
+        final long allocated = this.counter.stop();
+        assertBudget("Chunker.next()", allocated, (long) ITERATIONS * CHUNKS_PER_MESSAGE,
+                CHUNK_SIZE + OBJECT_SLACK);
+    }
+
+    /**
+     * A ChunkerSession does not allocate anything per message or chunk.
+     */
+    @Test
+    public void testChunkerSession() {
+        final ChunkerSession session = new ChunkerSession(CHUNK_SIZE);
+        for (int i = 0; i < WARMUP + ITERATIONS; i++) {
+            if (i == WARMUP) {
+                this.counter.start();
+            }
+            this.message.clear();
+            session.begin(this.message);
+            while (session.hasNext()) {
+                session.next();
+            }
+        }
+        final long allocated = this.counter.stop();
+        assertBudget("ChunkerSession.next()", allocated, (long) ITERATIONS * CHUNKS_PER_MESSAGE, 0);
+    }
+
+    /**
+     * Reassembling a message in order allocates at most twice its size,
+     * due to the growing buffer.
+     */
+    @Test
+    public void testUnchunkerAddOrdered() {
+        final Unchunker unchunker = new Unchunker();
+        final CountingListener listener = new CountingListener();
+        unchunker.onMessage(listener);
+        long allocated = 0;
+        for (int i = 0; i < WARMUP + ITERATIONS; i++) {
+            this.chunkMessage();
+            if (i == WARMUP) {
+                allocated = 0;
+            }
+            this.counter.start();
+            for (ByteBuffer chunk : this.chunks) {
+                unchunker.add(chunk);
+            }
+            allocated += this.counter.stop();
+        }
+        assertTrue(listener.messages == WARMUP + ITERATIONS);
+        assertBudget("Unchunker.add() per message", allocated, ITERATIONS,
+                2L * MESSAGE_SIZE + MESSAGE_SLACK);
+    }
+
+    /**
+     * Once the end chunk is known, a message is reassembled into
+     * a single buffer of its exact size.
+     */
+    @Test
+    public void testUnchunkerAddEndFirst() {
+        final Unchunker unchunker = new Unchunker();
+        final CountingListener listener = new CountingListener();
+        unchunker.onMessage(listener);
+        long allocated = 0;
+        for (int i = 0; i < WARMUP + ITERATIONS; i++) {
+            this.chunkMessage();
+            if (i == WARMUP) {
+                allocated = 0;
+            }
+            this.counter.start();
+            unchunker.add(this.chunks[CHUNKS_PER_MESSAGE - 1]);
+            for (int j = 0; j < CHUNKS_PER_MESSAGE - 1; j++) {
+                unchunker.add(this.chunks[j]);
+            }
+            allocated += this.counter.stop();
+        }
+        assertTrue(listener.messages == WARMUP + ITERATIONS);
+        assertBudget("Unchunker.add() per message", allocated, ITERATIONS,
+                MESSAGE_SIZE + PAYLOAD_SIZE + MESSAGE_SLACK);
+    }
+
+    /**
+     * Repeated chunks and late chunks of completed messages are
+     * dropped without allocating their payload.
+     */
+    @Test
+    public void testUnchunkerAddRepeated() {
+        final Unchunker unchunker = new Unchunker();
+        this.chunkMessage();
+        for (int i = 0; i < CHUNKS_PER_MESSAGE - 1; i++) {
+            unchunker.add(this.chunks[i].duplicate());
+        }
+
+        // Repeated chunks of a pending message
+        for (int i = 0; i < WARMUP; i++) {
+            unchunker.add(this.chunks[i % (CHUNKS_PER_MESSAGE - 1)].duplicate());
+        }
+        long allocated = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            final ByteBuffer chunk = this.chunks[i % (CHUNKS_PER_MESSAGE - 1)].duplicate();
+            this.counter.start();
+            unchunker.add(chunk);
+            allocated += this.counter.stop();
+        }
+        assertBudget("Unchunker.add() of a repeated chunk", allocated, ITERATIONS, OBJECT_SLACK / 4);
+
+        // Late chunks of a completed message
+        unchunker.add(this.chunks[CHUNKS_PER_MESSAGE - 1].duplicate());
+        for (int i = 0; i < WARMUP; i++) {
+            unchunker.add(this.chunks[i % CHUNKS_PER_MESSAGE].duplicate());
+        }
+        allocated = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            final ByteBuffer chunk = this.chunks[i % CHUNKS_PER_MESSAGE].duplicate();
+            this.counter.start();
+            unchunker.add(chunk);
+            allocated += this.counter.stop();
+        }
+        assertBudget("Unchunker.add() of a late chunk", allocated, ITERATIONS, 0);
+    }
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2016 Threema GmbH / SaltyRTC Contributors
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+
+package org.saltyrtc.chunkedDc.tests;
+
+import org.junit.Test;
+import org.saltyrtc.chunkedDc.BufferPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class BufferPoolTest {
+
+    @Test
+    public void testPowerOfTwoLengths() {
+        final BufferPool pool = new BufferPool(1 << 20, 1 << 20);
+        assertEquals(1024, pool.acquire(1).length);
+        assertEquals(1024, pool.acquire(1024).length);
+        assertEquals(2048, pool.acquire(1025).length);
+        assertEquals(1 << 20, pool.acquire((1 << 19) + 1).length);
+    }
+
+    @Test
+    public void testReuse() {
+        final BufferPool pool = new BufferPool(1 << 20, 1 << 20);
+        final byte[] buf = pool.acquire(3000);
+        pool.release(buf);
+        assertEquals(4096, pool.getPooledBytes());
+        assertSame(buf, pool.acquire(4000));
+        assertEquals(0, pool.getPooledBytes());
+        assertNotSame(buf, pool.acquire(4000));
+    }
+
+    /**
+     * Arrays larger than the maximum length are not pooled.
+     */
+    @Test
+    public void testLargeArrays() {
+        final BufferPool pool = new BufferPool(4096, 1 << 20);
+        final byte[] buf = pool.acquire(5000);
+        assertEquals(5000, buf.length);
+        pool.release(buf);
+        pool.release(new byte[8192]);
+        assertEquals(0, pool.getPooledBytes());
+    }
+
+    /**
+     * Arrays of foreign lengths are not pooled.
+     */
+    @Test
+    public void testForeignArrays() {
+        final BufferPool pool = new BufferPool(4096, 1 << 20);
+        pool.release(new byte[3000]);
+        pool.release(new byte[512]);
+        assertEquals(0, pool.getPooledBytes());
+    }
+
+    /**
+     * The pool does not grow beyond its maximum size.
+     */
+    @Test
+    public void testMaxPooledBytes() {
+        final BufferPool pool = new BufferPool(4096, 5000);
+        pool.release(pool.acquire(4096));
+        pool.release(pool.acquire(4096));
+        pool.release(new byte[4096]);
+        assertEquals(4096, pool.getPooledBytes());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidMaxLength() {
+        new BufferPool(0, 1024);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidMaxPooledBytes() {
+        new BufferPool(1024, 0);
+    }
+
+}
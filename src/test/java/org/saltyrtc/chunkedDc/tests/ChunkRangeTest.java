@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2016 Threema GmbH / SaltyRTC Contributors
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+
+package org.saltyrtc.chunkedDc.tests;
+
+import org.junit.Test;
+import org.saltyrtc.chunkedDc.ChunkRange;
+import org.saltyrtc.chunkedDc.Chunker;
+import org.saltyrtc.chunkedDc.Common;
+import org.saltyrtc.chunkedDc.Unchunker;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class ChunkRangeTest {
+
+    private static byte ID = 42;
+
+    private static ByteBuffer message(int size) {
+        final byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return ByteBuffer.wrap(data);
+    }
+
+    /**
+     * A range produces the same chunks as the sequential iteration.
+     */
+    @Test
+    public void testSameAsNext() {
+        final Chunker chunker = new Chunker(ID, message(100), Common.HEADER_LENGTH + 8);
+        final ChunkRange range = chunker.range();
+        assertEquals(13, range.size());
+        while (chunker.hasNext()) {
+            assertArrayEquals(chunker.next().array(), range.next().array());
+        }
+        assertFalse(range.hasNext());
+    }
+
+    @Test
+    public void testSplit() {
+        final Chunker chunker = new Chunker(ID, message(100), Common.HEADER_LENGTH + 8);
+        final ChunkRange range = chunker.range(2, 7);
+        final ChunkRange prefix = range.trySplit();
+        assertEquals(2, prefix.getFrom());
+        assertEquals(4, prefix.getTo());
+        assertEquals(4, range.getFrom());
+        assertEquals(7, range.getTo());
+        assertArrayEquals(chunker.getChunk(2).array(), prefix.next().array());
+        assertArrayEquals(chunker.getChunk(4).array(), range.next().array());
+
+        final ChunkRange single = chunker.range(12, 13);
+        assertNull(single.trySplit());
+        assertEquals(1, single.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidRange() {
+        new Chunker(ID, message(100), Common.HEADER_LENGTH + 8).range(0, 14);
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void testExhausted() {
+        final ChunkRange range = new Chunker(ID, message(4), Common.HEADER_LENGTH + 8).range();
+        range.next();
+        range.next();
+    }
+
+    /**
+     * Produce disjoint ranges of a message on multiple threads and
+     * reassemble the chunks in arbitrary order.
+     */
+    @Test
+    public void testParallelProduction() throws InterruptedException {
+        final ByteBuffer message = message(1000000);
+        final Chunker chunker = new Chunker(ID, message, 1000);
+
+        // Split into eight ranges
+        final List<ChunkRange> ranges = new ArrayList<>();
+        ranges.add(chunker.range());
+        while (ranges.size() < 8) {
+            final List<ChunkRange> halves = new ArrayList<>();
+            for (ChunkRange range : ranges) {
+                halves.add(range.trySplit());
+                halves.add(range);
+            }
+            ranges.clear();
+            ranges.addAll(halves);
+        }
+
+        final List<ByteBuffer> chunks = Collections.synchronizedList(new ArrayList<ByteBuffer>());
+        final List<Thread> threads = new ArrayList<>();
+        for (final ChunkRange range : ranges) {
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (range.hasNext()) {
+                        chunks.add(range.next());
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(chunker.getChunkCount(), chunks.size());
+
+        Collections.shuffle(chunks, new Random(1));
+        final Unchunker unchunker = new Unchunker();
+        final List<ByteBuffer> messages = new ArrayList<>();
+        unchunker.onMessage(new Unchunker.MessageListener() {
+            @Override
+            public void onMessage(ByteBuffer message) {
+                messages.add(message);
+            }
+        });
+        for (ByteBuffer chunk : chunks) {
+            unchunker.add(chunk);
+        }
+        assertEquals(1, messages.size());
+        assertEquals(message, messages.get(0));
+    }
+
+}
@@ -36,6 +36,8 @@ public class ChunkTest {
         assertFalse(buf.hasRemaining());
 
         assertFalse(chunk.isEndOfMessage());
+        assertFalse(chunk.isParity());
+        assertFalse(chunk.isBatch());
         assertEquals(4294967294L, chunk.getId());
         assertEquals(1, chunk.getSerial());
         assertArrayEquals(new byte[] { 1, 2, 3, 4, 5, 6 }, chunk.getData());
@@ -58,6 +60,42 @@ public class ChunkTest {
         assertArrayEquals(new byte[] { }, chunk.getData());
     }
 
+    @Test
+    public void testParityChunk() {
+        final ByteBuffer buf = ByteBuffer.wrap(new byte[] {
+                // Options
+                3,
+                // Id
+                0, 0, 0, 1,
+                // Serial
+                0, 0, 0, 4,
+                // Data
+                0, 0, 0, 1, 0, 0, 0, 1, 7
+        });
+        final Chunk chunk = new Chunk(buf);
+        assertTrue(chunk.isEndOfMessage());
+        assertTrue(chunk.isParity());
+        assertEquals(4, chunk.getSerial());
+    }
+
+    @Test
+    public void testBatchChunk() {
+        final ByteBuffer buf = ByteBuffer.wrap(new byte[] {
+                // Options
+                5,
+                // Id
+                0, 0, 0, 1,
+                // Serial
+                0, 0, 0, 0,
+                // Data
+                0, 1, 7, 0, 2, 8, 9
+        });
+        final Chunk chunk = new Chunk(buf);
+        assertTrue(chunk.isEndOfMessage());
+        assertTrue(chunk.isBatch());
+        assertFalse(chunk.isParity());
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void testInvalidChunk() {
         final ByteBuffer buf = ByteBuffer.wrap(new byte[] { 1, 2, 3 });
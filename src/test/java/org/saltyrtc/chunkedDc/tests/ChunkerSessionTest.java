@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2016 Threema GmbH / SaltyRTC Contributors
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+
+package org.saltyrtc.chunkedDc.tests;
+
+import org.junit.Test;
+import org.saltyrtc.chunkedDc.ChunkerSession;
+import org.saltyrtc.chunkedDc.Common;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkerSessionTest {
+
+    private static byte MORE = 0;
+    private static byte END = 1;
+
+    private static byte[] bytes(ByteBuffer buf) {
+        final byte[] data = new byte[buf.remaining()];
+        buf.get(data);
+        return data;
+    }
+
+    @Test
+    public void testMultipleMessages() {
+        final ChunkerSession session = new ChunkerSession(Common.HEADER_LENGTH + 2);
+        assertFalse(session.hasNext());
+        assertNull(session.next());
+
+        assertEquals(0, session.begin(ByteBuffer.wrap(new byte[] { 1, 2, 3 })));
+        assertTrue(session.hasNext());
+        assertArrayEquals(
+                new byte[] { MORE, /*Id*/0,0,0,0, /*Serial*/0,0,0,0, /*Data*/1,2 },
+                bytes(session.next())
+        );
+        assertArrayEquals(
+                new byte[] { END, /*Id*/0,0,0,0, /*Serial*/0,0,0,1, /*Data*/3 },
+                bytes(session.next())
+        );
+        assertFalse(session.hasNext());
+        assertNull(session.next());
+
+        assertEquals(1, session.begin(ByteBuffer.wrap(new byte[] { 4 })));
+        assertArrayEquals(
+                new byte[] { END, /*Id*/0,0,0,1, /*Serial*/0,0,0,0, /*Data*/4 },
+                bytes(session.next())
+        );
+        assertFalse(session.hasNext());
+    }
+
+    /**
+     * The chunk buffer is reused.
+     */
+    @Test
+    public void testReusedBuffer() {
+        final ChunkerSession session = new ChunkerSession(Common.HEADER_LENGTH + 1);
+        session.begin(ByteBuffer.wrap(new byte[] { 1, 2 }));
+        assertSame(session.next(), session.next());
+    }
+
+    /**
+     * Starting a new message discards the rest of the previous one.
+     */
+    @Test
+    public void testAbandonMessage() {
+        final ChunkerSession session = new ChunkerSession(Common.HEADER_LENGTH + 1);
+        session.begin(ByteBuffer.wrap(new byte[] { 1, 2 }));
+        session.next();
+        session.begin(ByteBuffer.wrap(new byte[] { 3 }));
+        assertArrayEquals(
+                new byte[] { END, /*Id*/0,0,0,1, /*Serial*/0,0,0,0, /*Data*/3 },
+                bytes(session.next())
+        );
+    }
+
+    /**
+     * Message ids wrap around after 2**32-1.
+     */
+    @Test
+    public void testIdWraparound() {
+        final ChunkerSession session = new ChunkerSession(4294967294L, Common.HEADER_LENGTH + 1);
+        assertEquals(4294967294L, session.begin(ByteBuffer.wrap(new byte[] { 1 })));
+        assertEquals(4294967295L, session.begin(ByteBuffer.wrap(new byte[] { 1 })));
+        assertArrayEquals(
+                new byte[] { END, /*Id*/-1,-1,-1,-1, /*Serial*/0,0,0,0, /*Data*/1 },
+                bytes(session.next())
+        );
+        assertEquals(0, session.getNextId());
+        assertEquals(0, session.begin(ByteBuffer.wrap(new byte[] { 1 })));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmptyMessage() {
+        new ChunkerSession(Common.HEADER_LENGTH + 1).begin(ByteBuffer.allocate(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidChunkSize() {
+        new ChunkerSession(Common.HEADER_LENGTH);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidFirstId() {
+        new ChunkerSession(4294967296L, Common.HEADER_LENGTH + 1);
+    }
+
+    @Test
+    public void testMultipleBuffers() {
+        final ChunkerSession session = new ChunkerSession(Common.HEADER_LENGTH + 4);
+        assertEquals(0, session.begin(new ByteBuffer[] {
+                ByteBuffer.wrap(new byte[] { 1, 2, 3 }),
+                ByteBuffer.wrap(new byte[] { 4, 5 })
+        }));
+        assertArrayEquals(
+                new byte[] { MORE, /*Id*/0,0,0,0, /*Serial*/0,0,0,0, /*Data*/1,2,3,4 },
+                bytes(session.next())
+        );
+        assertArrayEquals(
+                new byte[] { END, /*Id*/0,0,0,0, /*Serial*/0,0,0,1, /*Data*/5 },
+                bytes(session.next())
+        );
+        assertFalse(session.hasNext());
+    }
+
+}
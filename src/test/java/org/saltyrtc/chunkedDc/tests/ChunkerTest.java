@@ -13,6 +13,7 @@ import org.saltyrtc.chunkedDc.Chunker;
 import org.saltyrtc.chunkedDc.Common;
 
 import java.nio.ByteBuffer;
+import java.util.Random;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertArrayEquals;
@@ -24,6 +25,8 @@ public class ChunkerTest {
 
     private static byte MORE = 0;
     private static byte END = 1;
+    private static byte PARITY = 2;
+    private static byte PARITY_END = 3;
 
     private static byte ID = 42;
 
@@ -154,4 +157,187 @@ public class ChunkerTest {
         new Chunker(-1, buf, Common.HEADER_LENGTH + 2);
     }
 
+    /**
+     * Emit a parity chunk after each group and after the last chunk.
+     */
+    @Test
+    public void testParityChunks() {
+        final ByteBuffer buf = ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 5 });
+        final Chunker chunker = new Chunker(ID, buf, Common.HEADER_LENGTH + 8 + 2, 2);
+        assertArrayEquals(
+                new byte[] { MORE, /*Id*/0,0,0,ID, /*Serial*/0,0,0,0, /*Data*/1,2 },
+                chunker.next().array()
+        );
+        assertArrayEquals(
+                new byte[] { MORE, /*Id*/0,0,0,ID, /*Serial*/0,0,0,1, /*Data*/3,4 },
+                chunker.next().array()
+        );
+        assertArrayEquals(
+                new byte[] { PARITY, /*Id*/0,0,0,ID, /*Serial*/0,0,0,0,
+                        /*Count*/0,0,0,2, /*Length XOR*/0,0,0,0, /*Data*/1^3,2^4 },
+                chunker.next().array()
+        );
+        assertArrayEquals(
+                new byte[] { END, /*Id*/0,0,0,ID, /*Serial*/0,0,0,2, /*Data*/5 },
+                chunker.next().array()
+        );
+        // No parity for a final group with a single chunk
+        assertFalse(chunker.hasNext());
+        assertNull(chunker.next());
+    }
+
+    /**
+     * The final group is followed by a parity chunk if it has more than one chunk.
+     */
+    @Test
+    public void testParityChunksEnd() {
+        final ByteBuffer buf = ByteBuffer.wrap(new byte[] { 1, 2, 3 });
+        final Chunker chunker = new Chunker(ID, buf, Common.HEADER_LENGTH + 8 + 2, 4);
+        assertArrayEquals(
+                new byte[] { MORE, /*Id*/0,0,0,ID, /*Serial*/0,0,0,0, /*Data*/1,2 },
+                chunker.next().array()
+        );
+        assertArrayEquals(
+                new byte[] { END, /*Id*/0,0,0,ID, /*Serial*/0,0,0,1, /*Data*/3 },
+                chunker.next().array()
+        );
+        assertTrue(chunker.hasNext());
+        assertArrayEquals(
+                new byte[] { PARITY_END, /*Id*/0,0,0,ID, /*Serial*/0,0,0,0,
+                        /*Count*/0,0,0,2, /*Length XOR*/0,0,0,3, /*Data*/1^3,2 },
+                chunker.next().array()
+        );
+        assertFalse(chunker.hasNext());
+    }
+
+    /**
+     * With parity, the chunk size must leave room for the parity header.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testParityChunkSize() {
+        final ByteBuffer buf = ByteBuffer.wrap(new byte[] { 1, 2 });
+        new Chunker(ID, buf, Common.HEADER_LENGTH + 8, 2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeParityGroupSize() {
+        final ByteBuffer buf = ByteBuffer.wrap(new byte[] { 1, 2 });
+        new Chunker(ID, buf, Common.HEADER_LENGTH + 9, -1);
+    }
+
+    /**
+     * Chunks can be regenerated by serial, independent of the iteration.
+     */
+    @Test
+    public void testGetChunk() {
+        final ByteBuffer buf = ByteBuffer.wrap(new byte[] { 0, 1, 2, 3, 4, 5, 6, 7 });
+        buf.position(1);
+        final Chunker chunker = new Chunker(ID, buf, Common.HEADER_LENGTH + 3);
+        assertEquals(3, chunker.getChunkCount());
+        final ByteBuffer first = chunker.next();
+        assertArrayEquals(
+                new byte[] { END, /*Id*/0,0,0,ID, /*Serial*/0,0,0,2, /*Data*/7 },
+                chunker.getChunk(2).array()
+        );
+        assertArrayEquals(first.array(), chunker.getChunk(0).array());
+        assertArrayEquals(
+                new byte[] { MORE, /*Id*/0,0,0,ID, /*Serial*/0,0,0,1, /*Data*/4,5,6 },
+                chunker.next().array()
+        );
+        assertArrayEquals(
+                new byte[] { END, /*Id*/0,0,0,ID, /*Serial*/0,0,0,2, /*Data*/7 },
+                chunker.next().array()
+        );
+        assertFalse(chunker.hasNext());
+        assertArrayEquals(
+                new byte[] { MORE, /*Id*/0,0,0,ID, /*Serial*/0,0,0,1, /*Data*/4,5,6 },
+                chunker.getChunk(1).array()
+        );
+    }
+
+    /**
+     * Parity chunks are not counted and cannot be regenerated.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testGetChunkInvalidSerial() {
+        final ByteBuffer buf = ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 5 });
+        final Chunker chunker = new Chunker(ID, buf, Common.HEADER_LENGTH + 8 + 2, 2);
+        assertEquals(3, chunker.getChunkCount());
+        chunker.getChunk(3);
+    }
+
+    /**
+     * Chunks span the boundaries of multiple buffers.
+     */
+    @Test
+    public void testMultipleBuffers() {
+        final ByteBuffer[] bufs = {
+                ByteBuffer.wrap(new byte[] { 1, 2 }),
+                ByteBuffer.allocate(0),
+                ByteBuffer.wrap(new byte[] { 3 }),
+                ByteBuffer.wrap(new byte[] { 4, 5, 6, 7 })
+        };
+        final Chunker chunker = new Chunker(ID, bufs, Common.HEADER_LENGTH + 3);
+        assertEquals(3, chunker.getChunkCount());
+        assertArrayEquals(
+                new byte[] { MORE, /*Id*/0,0,0,ID, /*Serial*/0,0,0,0, /*Data*/1,2,3 },
+                chunker.next().array()
+        );
+        assertArrayEquals(
+                new byte[] { END, /*Id*/0,0,0,ID, /*Serial*/0,0,0,2, /*Data*/7 },
+                chunker.getChunk(2).array()
+        );
+        assertArrayEquals(
+                new byte[] { MORE, /*Id*/0,0,0,ID, /*Serial*/0,0,0,1, /*Data*/4,5,6 },
+                chunker.next().array()
+        );
+        assertArrayEquals(
+                new byte[] { END, /*Id*/0,0,0,ID, /*Serial*/0,0,0,2, /*Data*/7 },
+                chunker.next().array()
+        );
+        assertFalse(chunker.hasNext());
+        for (ByteBuffer buf : bufs) {
+            assertFalse(buf.hasRemaining());
+        }
+    }
+
+    /**
+     * Chunking multiple buffers produces the same chunks as chunking
+     * their concatenation, with and without parity.
+     */
+    @Test
+    public void testMultipleBuffersSameAsSingle() {
+        final Random random = new Random(1);
+        for (int i = 0; i < 200; i++) {
+            final byte[] data = new byte[1 + random.nextInt(200)];
+            random.nextBytes(data);
+            final ByteBuffer[] bufs = new ByteBuffer[1 + random.nextInt(5)];
+            int offset = 0;
+            for (int j = 0; j < bufs.length; j++) {
+                final int length = j == bufs.length - 1
+                        ? data.length - offset
+                        : random.nextInt(data.length - offset + 1);
+                bufs[j] = ByteBuffer.wrap(data, offset, length);
+                offset += length;
+            }
+            final int chunkSize = Common.HEADER_LENGTH + 8 + 1 + random.nextInt(30);
+            final int parityGroupSize = random.nextInt(4);
+            final Chunker single = new Chunker(ID, ByteBuffer.wrap(data), chunkSize, parityGroupSize);
+            final Chunker multiple = new Chunker(ID, bufs, chunkSize, parityGroupSize);
+            assertEquals(single.getChunkCount(), multiple.getChunkCount());
+            for (int serial = 0; serial < single.getChunkCount(); serial++) {
+                assertArrayEquals(single.getChunk(serial).array(), multiple.getChunk(serial).array());
+            }
+            while (single.hasNext()) {
+                assertArrayEquals(single.next().array(), multiple.next().array());
+            }
+            assertFalse(multiple.hasNext());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMultipleBuffersEmpty() {
+        new Chunker(ID, new ByteBuffer[] { ByteBuffer.allocate(0), ByteBuffer.allocate(0) }, 10);
+    }
+
 }
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2016 Threema GmbH / SaltyRTC Contributors
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+
+package org.saltyrtc.chunkedDc.tests;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.saltyrtc.chunkedDc.Chunker;
+import org.saltyrtc.chunkedDc.FrameReader;
+import org.saltyrtc.chunkedDc.FrameWriter;
+import org.saltyrtc.chunkedDc.Unchunker;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class FrameReaderTest {
+
+    private static byte END = 1;
+
+    private static class LoggingListener implements Unchunker.MessageListener {
+        final List<byte[]> messages = new ArrayList<>();
+        @Override
+        public void onMessage(ByteBuffer message) {
+            final byte[] data = new byte[message.remaining()];
+            message.get(data);
+            this.messages.add(data);
+        }
+    }
+
+    /**
+     * A channel returning at most `step` bytes per read.
+     */
+    private static class TricklingChannel implements ReadableByteChannel {
+        private final ByteBuffer data;
+        private final int step;
+
+        TricklingChannel(byte[] data, int step) {
+            this.data = ByteBuffer.wrap(data);
+            this.step = step;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (!this.data.hasRemaining()) {
+                return -1;
+            }
+            final int length = Math.min(this.step, Math.min(dst.remaining(), this.data.remaining()));
+            final ByteBuffer slice = this.data.duplicate();
+            slice.limit(slice.position() + length);
+            dst.put(slice);
+            this.data.position(this.data.position() + length);
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static byte[] message(int size) {
+        final byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Send messages with and without parity over a pipe.
+     */
+    @Test
+    public void testRoundtripOverPipe() throws Exception {
+        final Pipe pipe = Pipe.open();
+        final byte[][] messages = { message(1), message(100), message(65536), message(1000000) };
+        final Thread sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final FrameWriter writer = new FrameWriter(pipe.sink());
+                    for (int i = 0; i < messages.length; i++) {
+                        writer.write(new Chunker(i, ByteBuffer.wrap(messages[i]), 1024, i % 2 * 8));
+                    }
+                    pipe.sink().close();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        sender.start();
+
+        final Unchunker unchunker = new Unchunker();
+        final LoggingListener listener = new LoggingListener();
+        unchunker.onMessage(listener);
+        final FrameReader reader = new FrameReader(pipe.source(), unchunker, 1024);
+        while (reader.read() >= 0) {
+            // Keep reading
+        }
+        sender.join();
+
+        assertEquals(messages.length, listener.messages.size());
+        for (int i = 0; i < messages.length; i++) {
+            assertArrayEquals(messages[i], listener.messages.get(i));
+        }
+    }
+
+    /**
+     * Frames split across reads are reassembled.
+     */
+    @Test
+    public void testPartialReads() throws IOException {
+        final byte[] stream = {
+                0,0,0,11, 0, 0,0,0,1, 0,0,0,0, 1,2,
+                0,0,0,10, END, 0,0,0,1, 0,0,0,1, 3
+        };
+        final Unchunker unchunker = new Unchunker();
+        final LoggingListener listener = new LoggingListener();
+        unchunker.onMessage(listener);
+        final FrameReader reader = new FrameReader(new TricklingChannel(stream, 3), unchunker, 16);
+        int frames = 0;
+        int read;
+        while ((read = reader.read()) >= 0) {
+            frames += read;
+        }
+        assertEquals(2, frames);
+        assertEquals(1, listener.messages.size());
+        assertArrayEquals(new byte[] { 1, 2, 3 }, listener.messages.get(0));
+    }
+
+    /**
+     * An invalid chunk is skipped, the frames after it are still read.
+     */
+    @Test
+    public void testInvalidChunk() throws IOException {
+        final byte[] stream = {
+                0,0,0,2, 1,2,
+                0,0,0,10, END, 0,0,0,1, 0,0,0,0, 3
+        };
+        final Unchunker unchunker = new Unchunker();
+        final LoggingListener listener = new LoggingListener();
+        unchunker.onMessage(listener);
+        final FrameReader reader = new FrameReader(Channels.newChannel(new ByteArrayInputStream(stream)),
+                unchunker, 16);
+        try {
+            reader.read();
+            Assert.fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        assertEquals(1, reader.read());
+        assertEquals(-1, reader.read());
+        assertArrayEquals(new byte[] { 3 }, listener.messages.get(0));
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void testFrameTooLarge() throws IOException {
+        final byte[] stream = { 0,0,0,17 };
+        new FrameReader(Channels.newChannel(new ByteArrayInputStream(stream)), new Unchunker(), 16).read();
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void testTruncatedFrame() throws IOException {
+        final byte[] stream = { 0,0,0,10, END, 0,0,0,1 };
+        final FrameReader reader = new FrameReader(new TricklingChannel(stream, 100), new Unchunker(), 16);
+        assertEquals(0, reader.read());
+        reader.read();
+    }
+
+}
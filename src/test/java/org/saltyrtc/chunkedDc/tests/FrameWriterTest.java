@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2016 Threema GmbH / SaltyRTC Contributors
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+
+package org.saltyrtc.chunkedDc.tests;
+
+import org.junit.Test;
+import org.saltyrtc.chunkedDc.Chunker;
+import org.saltyrtc.chunkedDc.Common;
+import org.saltyrtc.chunkedDc.FrameWriter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class FrameWriterTest {
+
+    private static byte MORE = 0;
+    private static byte END = 1;
+    private static byte PARITY_END = 3;
+
+    private static byte ID = 42;
+
+    /**
+     * Read the specified number of bytes from the pipe.
+     */
+    private static byte[] read(Pipe pipe, int length) throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            pipe.source().read(buf);
+        }
+        return buf.array();
+    }
+
+    @Test
+    public void testWriteChunk() throws IOException {
+        final Pipe pipe = Pipe.open();
+        final FrameWriter writer = new FrameWriter(pipe.sink());
+        final ByteBuffer chunk = ByteBuffer.wrap(new byte[] { END, 0,0,0,ID, 0,0,0,0, 1,2,3 });
+        writer.write(chunk);
+        assertEquals(0, chunk.remaining());
+        assertArrayEquals(
+                new byte[] { /*Length*/0,0,0,12, END, 0,0,0,ID, 0,0,0,0, 1,2,3 },
+                read(pipe, 16)
+        );
+    }
+
+    @Test
+    public void testWriteChunker() throws IOException {
+        final Pipe pipe = Pipe.open();
+        final FrameWriter writer = new FrameWriter(pipe.sink());
+        final ByteBuffer buf = ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 5 });
+        final Chunker chunker = new Chunker(ID, buf, Common.HEADER_LENGTH + 3);
+        assertEquals(2, writer.write(chunker));
+        assertArrayEquals(
+                new byte[] {
+                        /*Length*/0,0,0,12, MORE, 0,0,0,ID, 0,0,0,0, 1,2,3,
+                        /*Length*/0,0,0,11, END, 0,0,0,ID, 0,0,0,1, 4,5
+                },
+                read(pipe, 31)
+        );
+        assertEquals(5, buf.position());
+    }
+
+    @Test
+    public void testWriteChunkerWithParity() throws IOException {
+        final Pipe pipe = Pipe.open();
+        final FrameWriter writer = new FrameWriter(pipe.sink());
+        final ByteBuffer buf = ByteBuffer.wrap(new byte[] { 1, 2, 3 });
+        final Chunker chunker = new Chunker(ID, buf, Common.HEADER_LENGTH + 8 + 2, 4);
+        assertEquals(3, writer.write(chunker));
+        assertArrayEquals(
+                new byte[] {
+                        /*Length*/0,0,0,11, MORE, 0,0,0,ID, 0,0,0,0, 1,2,
+                        /*Length*/0,0,0,10, END, 0,0,0,ID, 0,0,0,1, 3,
+                        /*Length*/0,0,0,19, PARITY_END, 0,0,0,ID, 0,0,0,0,
+                        /*Count*/0,0,0,2, /*Length XOR*/0,0,0,3, 1^3,2
+                },
+                read(pipe, 52)
+        );
+    }
+
+    /**
+     * Chunks within a buffer are written from the buffer, chunks spanning
+     * multiple buffers are copied.
+     */
+    @Test
+    public void testWriteChunkerMultipleBuffers() throws IOException {
+        final Pipe pipe = Pipe.open();
+        final FrameWriter writer = new FrameWriter(pipe.sink());
+        final ByteBuffer[] bufs = {
+                ByteBuffer.wrap(new byte[] { 1, 2 }),
+                ByteBuffer.wrap(new byte[] { 3, 4, 5, 6 })
+        };
+        final Chunker chunker = new Chunker(ID, bufs, Common.HEADER_LENGTH + 3);
+        assertEquals(2, writer.write(chunker));
+        assertArrayEquals(
+                new byte[] {
+                        /*Length*/0,0,0,12, MORE, 0,0,0,ID, 0,0,0,0, 1,2,3,
+                        /*Length*/0,0,0,12, END, 0,0,0,ID, 0,0,0,1, 4,5,6
+                },
+                read(pipe, 32)
+        );
+    }
+
+}
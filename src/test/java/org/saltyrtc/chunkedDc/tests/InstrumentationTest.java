@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2016 Threema GmbH / SaltyRTC Contributors
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+
+package org.saltyrtc.chunkedDc.tests;
+
+import org.junit.After;
+import org.junit.Test;
+import org.saltyrtc.chunkedDc.Chunker;
+import org.saltyrtc.chunkedDc.Common;
+import org.saltyrtc.chunkedDc.Instrumentation;
+import org.saltyrtc.chunkedDc.Unchunker;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class InstrumentationTest {
+
+    /**
+     * Record all hook calls as strings.
+     */
+    private static class RecordingInstrumentation extends Instrumentation {
+        final List<String> calls = new ArrayList<>();
+        int lockWaits = 0;
+
+        @Override
+        public void messageChunked(long id, int length, int chunks) {
+            this.calls.add("chunked " + id + " " + length + " " + chunks);
+        }
+
+        @Override
+        public void chunkReceived(long id, long serial, int length, boolean parity) {
+            this.calls.add("received " + id + " " + serial + " " + length + " " + parity);
+        }
+
+        @Override
+        public void duplicateDropped(long id, long serial) {
+            this.calls.add("duplicate " + id + " " + serial);
+        }
+
+        @Override
+        public void messageCompleted(long id, long nanos, long chunks, int length) {
+            assertTrue(nanos >= 0);
+            this.calls.add("completed " + id + " " + chunks + " " + length);
+        }
+
+        @Override
+        public void messageExpired(long id, int chunks) {
+            this.calls.add("expired " + id + " " + chunks);
+        }
+
+        @Override
+        public void lockWait(long nanos) {
+            assertTrue(nanos >= 0);
+            this.lockWaits++;
+        }
+    }
+
+    @After
+    public void tearDown() {
+        Instrumentation.install(null);
+    }
+
+    @Test
+    public void testLifecycle() throws InterruptedException {
+        final RecordingInstrumentation instrumentation = new RecordingInstrumentation();
+        Instrumentation.install(instrumentation);
+
+        final Chunker chunker = new Chunker(1, ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 5 }),
+                Common.HEADER_LENGTH + 2);
+        final Unchunker unchunker = new Unchunker();
+        final ByteBuffer first = chunker.next();
+        unchunker.add(first.duplicate());
+        unchunker.add(first.duplicate());
+        unchunker.add(chunker.next());
+        unchunker.add(chunker.next());
+        unchunker.add(first.duplicate());
+        unchunker.add(ByteBuffer.wrap(new byte[] { 1, 0,0,0,2, 0,0,0,0, 7 }));
+        unchunker.add(ByteBuffer.wrap(new byte[] { 0, 0,0,0,3, 0,0,0,0, 7 }));
+        Thread.sleep(20);
+        unchunker.gc(10);
+
+        final List<String> expected = new ArrayList<>();
+        expected.add("chunked 1 5 3");
+        expected.add("received 1 0 11 false");
+        expected.add("duplicate 1 0");
+        expected.add("received 1 1 11 false");
+        expected.add("received 1 2 10 false");
+        expected.add("completed 1 3 5");
+        expected.add("duplicate 1 0");
+        expected.add("received 2 0 10 false");
+        expected.add("completed 2 1 1");
+        expected.add("received 3 0 10 false");
+        expected.add("expired 3 1");
+        assertEquals(expected, instrumentation.calls);
+        assertEquals(7, instrumentation.lockWaits);
+    }
+
+    @Test
+    public void testUninstall() {
+        final RecordingInstrumentation instrumentation = new RecordingInstrumentation();
+        Instrumentation.install(instrumentation);
+        assertTrue(Instrumentation.getInstalled() == instrumentation);
+        Instrumentation.install(null);
+        assertNull(Instrumentation.getInstalled());
+        new Unchunker().add(ByteBuffer.wrap(new byte[] { 1, 0,0,0,2, 0,0,0,0, 7 }));
+        assertEquals(0, instrumentation.calls.size());
+    }
+
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (c) 2016 Threema GmbH / SaltyRTC Contributors
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+
+package org.saltyrtc.chunkedDc.tests;
+
+import org.saltyrtc.chunkedDc.Chunker;
+import org.saltyrtc.chunkedDc.Unchunker;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Deterministic soak and load simulator.
+ *
+ * Pushes messages through a `Chunker`, a channel model that loses,
+ * duplicates and delays chunks, and an `Unchunker`. Time is simulated,
+ * so runs with the same configuration produce the same report (apart from
+ * the measured wall clock throughput).
+ *
+ * Run with `./gradlew simulate --args="--messages=100000 --loss=0.01"`.
+ */
+public class LossyChannelSimulator {
+
+    /**
+     * Simulation parameters.
+     */
+    public static class Config {
+        /** Number of messages to send. */
+        public int messages = 10000;
+        /** Minimum message size in bytes. */
+        public int minSize = 4;
+        /** Maximum message size in bytes. */
+        public int maxSize = 256 * 1024;
+        /** Chunk size including header. */
+        public int chunkSize = 16 * 1024;
+        /** Chunks per parity chunk, 0 to disable forward error correction. */
+        public int parityGroupSize = 0;
+        /** Messages started per simulated second. */
+        public double messageRate = 1000;
+        /** Chunks sent per simulated millisecond and message. */
+        public double chunkRate = 10;
+        /** Probability that a chunk is lost. */
+        public double loss = 0;
+        /** Probability that a chunk is delivered twice. */
+        public double duplicate = 0;
+        /** Fixed delivery latency in milliseconds. */
+        public double latency = 20;
+        /** Maximum random delay added to the latency in milliseconds. */
+        public double jitter = 10;
+        /** Seed of the random number generator. */
+        public long seed = 42;
+
+        /**
+         * Apply command line options of the form `--name=value`.
+         */
+        public Config parse(String[] args) {
+            for (String arg : args) {
+                final String[] parts = arg.replaceFirst("^--", "").split("=", 2);
+                if (parts.length != 2) {
+                    throw new IllegalArgumentException("Invalid option: " + arg);
+                }
+                try {
+                    final java.lang.reflect.Field field = Config.class.getField(parts[0]);
+                    if (field.getType() == int.class) {
+                        field.setInt(this, Integer.parseInt(parts[1]));
+                    } else if (field.getType() == long.class) {
+                        field.setLong(this, Long.parseLong(parts[1]));
+                    } else {
+                        field.setDouble(this, Double.parseDouble(parts[1]));
+                    }
+                } catch (NoSuchFieldException | IllegalAccessException e) {
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+                }
+            }
+            return this;
+        }
+    }
+
+    /**
+     * Simulation results.
+     */
+    public static class Report {
+        public int sent;
+        public int completed;
+        public int corrupted;
+        public long chunksSent;
+        public long chunksLost;
+        public long chunksDuplicated;
+        public long bytesCompleted;
+        public long peakBufferedBytes;
+        public int pendingCollectors;
+        /** Incomplete messages of which at least one chunk was delivered. */
+        public int partiallyDelivered;
+        public long wallNanos;
+        /** Completion latencies in simulated milliseconds, sorted. */
+        public double[] latencies;
+
+        /**
+         * Return the completion latency at the specified percentile (0-100).
+         */
+        public double latencyPercentile(double percentile) {
+            if (this.latencies.length == 0) {
+                return Double.NaN;
+            }
+            final int index = (int) Math.ceil(percentile / 100 * this.latencies.length) - 1;
+            return this.latencies[Math.max(0, Math.min(index, this.latencies.length - 1))];
+        }
+
+        /**
+         * Return the number of pending collectors that do not belong to a
+         * partially delivered message, e.g. collectors created by late duplicates.
+         */
+        public int leakedCollectors() {
+            return this.pendingCollectors - this.partiallyDelivered;
+        }
+
+        @Override
+        public String toString() {
+            final double seconds = this.wallNanos / 1e9;
+            return String.format(
+                "messages:   %d sent, %d completed, %d corrupted%n" +
+                "chunks:     %d sent, %d lost, %d duplicated%n" +
+                "throughput: %.0f messages/s, %.1f MiB/s%n" +
+                "latency:    p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms%n" +
+                "memory:     %d peak buffered bytes%n" +
+                "collectors: %d pending, %d leaked",
+                this.sent, this.completed, this.corrupted,
+                this.chunksSent, this.chunksLost, this.chunksDuplicated,
+                this.completed / seconds, this.bytesCompleted / seconds / 1024 / 1024,
+                this.latencyPercentile(50), this.latencyPercentile(90),
+                this.latencyPercentile(99), this.latencyPercentile(100),
+                this.peakBufferedBytes,
+                this.pendingCollectors, this.leakedCollectors());
+        }
+    }
+
+    /**
+     * A scheduled event: A message is started (no chunker and no chunk),
+     * the next chunk of a message is sent (chunker only) or a chunk is
+     * delivered to the unchunker (chunk only).
+     */
+    private static class Event implements Comparable<Event> {
+        final double time;
+        final long sequence;
+        final int message;
+        final Chunker chunker;
+        final ByteBuffer chunk;
+
+        Event(double time, long sequence, int message, Chunker chunker, ByteBuffer chunk) {
+            this.time = time;
+            this.sequence = sequence;
+            this.message = message;
+            this.chunker = chunker;
+            this.chunk = chunk;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            final int result = Double.compare(this.time, other.time);
+            return result != 0 ? result : Long.compare(this.sequence, other.sequence);
+        }
+    }
+
+    private final Config config;
+    private final Random random;
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+    private final double[] startTimes;
+    private final int[] sizes;
+    private final double[] latencies;
+    private final boolean[] delivered;
+    private final boolean[] completed;
+    private final Report report = new Report();
+    private long sequence = 0;
+    private double now = 0;
+
+    public LossyChannelSimulator(Config config) {
+        if (config.minSize < 4 || config.maxSize < config.minSize) {
+            throw new IllegalArgumentException("Message sizes must be at least 4 bytes");
+        }
+        this.config = config;
+        this.random = new Random(config.seed);
+        this.startTimes = new double[config.messages];
+        this.sizes = new int[config.messages];
+        this.latencies = new double[config.messages];
+        this.delivered = new boolean[config.messages];
+        this.completed = new boolean[config.messages];
+    }
+
+    /**
+     * Run the simulation.
+     */
+    public Report run() {
+        final Unchunker unchunker = new Unchunker();
+        unchunker.onMessage(new Unchunker.MessageListener() {
+            @Override
+            public void onMessage(ByteBuffer message) {
+                LossyChannelSimulator.this.complete(message);
+            }
+        });
+
+        // Schedule message starts
+        for (int i = 0; i < this.config.messages; i++) {
+            this.startTimes[i] = i * 1000 / this.config.messageRate;
+            this.sizes[i] = this.config.minSize + this.random.nextInt(this.config.maxSize - this.config.minSize + 1);
+            this.schedule(new Event(this.startTimes[i], this.sequence++, i, null, null));
+        }
+
+        final long start = System.nanoTime();
+        Event event;
+        while ((event = this.events.poll()) != null) {
+            this.now = event.time;
+            if (event.chunker == null && event.chunk == null) {
+                final Chunker chunker = new Chunker(event.message, message(event.message, this.sizes[event.message]),
+                        this.config.chunkSize, this.config.parityGroupSize);
+                this.send(new Event(event.time, event.sequence, event.message, chunker, null));
+            } else if (event.chunk == null) {
+                this.send(event);
+            } else {
+                this.delivered[event.message] = true;
+                unchunker.add(event.chunk);
+                this.report.peakBufferedBytes = Math.max(this.report.peakBufferedBytes, unchunker.getBufferedBytes());
+            }
+        }
+        this.report.wallNanos = System.nanoTime() - start;
+
+        this.report.sent = this.config.messages;
+        this.report.pendingCollectors = unchunker.getPendingMessageCount();
+        for (int i = 0; i < this.config.messages; i++) {
+            if (this.delivered[i] && !this.completed[i]) {
+                this.report.partiallyDelivered++;
+            }
+        }
+        this.report.latencies = Arrays.copyOf(this.latencies, this.report.completed);
+        Arrays.sort(this.report.latencies);
+        return this.report;
+    }
+
+    /**
+     * Send the next chunk of a message through the channel model.
+     */
+    private void send(Event event) {
+        final ByteBuffer chunk = event.chunker.next();
+        this.report.chunksSent++;
+        if (this.random.nextDouble() < this.config.loss) {
+            this.report.chunksLost++;
+        } else {
+            this.deliver(event.message, chunk);
+            if (this.random.nextDouble() < this.config.duplicate) {
+                this.report.chunksDuplicated++;
+                this.deliver(event.message, chunk.duplicate());
+            }
+        }
+        if (event.chunker.hasNext()) {
+            final double next = this.now + 1 / this.config.chunkRate;
+            this.schedule(new Event(next, this.sequence++, event.message, event.chunker, null));
+        }
+    }
+
+    private void deliver(int message, ByteBuffer chunk) {
+        final double time = this.now + this.config.latency + this.random.nextDouble() * this.config.jitter;
+        this.schedule(new Event(time, this.sequence++, message, null, chunk));
+    }
+
+    private void schedule(Event event) {
+        this.events.add(event);
+    }
+
+    /**
+     * Verify and record a completed message.
+     */
+    private void complete(ByteBuffer message) {
+        final int index = message.getInt(message.position());
+        if (!message.equals(message(index, message.remaining()))) {
+            this.report.corrupted++;
+            return;
+        }
+        this.completed[index] = true;
+        this.latencies[this.report.completed++] = this.now - this.startTimes[index];
+        this.report.bytesCompleted += message.remaining();
+    }
+
+    /**
+     * Return the content of the message with the specified index.
+     */
+    private static ByteBuffer message(int index, int size) {
+        final ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.putInt(index);
+        while (buf.hasRemaining()) {
+            buf.put((byte) (index + buf.position()));
+        }
+        buf.flip();
+        return buf;
+    }
+
+    public static void main(String[] args) {
+        final Config config = new Config().parse(args);
+        System.out.println(new LossyChannelSimulator(config).run());
+    }
+
+}
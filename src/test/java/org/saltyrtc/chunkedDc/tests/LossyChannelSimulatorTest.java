@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2016 Threema GmbH / SaltyRTC Contributors
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+
+package org.saltyrtc.chunkedDc.tests;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LossyChannelSimulatorTest {
+
+    private static LossyChannelSimulator.Config config() {
+        final LossyChannelSimulator.Config config = new LossyChannelSimulator.Config();
+        config.messages = 500;
+        config.maxSize = 64 * 1024;
+        config.chunkSize = 1024;
+        return config;
+    }
+
+    /**
+     * Without loss, all messages complete and nothing stays buffered.
+     */
+    @Test
+    public void testReliableChannel() {
+        final LossyChannelSimulator.Config config = config();
+        config.duplicate = 0.1;
+        final LossyChannelSimulator.Report report = new LossyChannelSimulator(config).run();
+
+        assertEquals(500, report.completed);
+        assertEquals(0, report.corrupted);
+        assertEquals(0, report.pendingCollectors);
+        assertTrue(report.peakBufferedBytes > 0);
+    }
+
+    /**
+     * Lost chunks leave incomplete messages behind, but late
+     * duplicates must not leak any additional collectors.
+     */
+    @Test
+    public void testLossyChannel() {
+        final LossyChannelSimulator.Config config = config();
+        config.loss = 0.01;
+        config.duplicate = 0.1;
+        config.jitter = 50;
+        final LossyChannelSimulator.Report report = new LossyChannelSimulator(config).run();
+
+        assertTrue(report.completed < 500);
+        assertEquals(0, report.corrupted);
+        assertEquals(0, report.leakedCollectors());
+    }
+
+    /**
+     * Parity chunks restore messages despite lost chunks.
+     */
+    @Test
+    public void testParity() {
+        final LossyChannelSimulator.Config config = config();
+        config.loss = 0.01;
+        final int withoutParity = new LossyChannelSimulator(config).run().completed;
+        config.parityGroupSize = 8;
+        final LossyChannelSimulator.Report report = new LossyChannelSimulator(config).run();
+
+        assertTrue(report.completed > withoutParity);
+        assertEquals(0, report.corrupted);
+        assertEquals(0, report.leakedCollectors());
+    }
+
+    /**
+     * Runs with the same configuration produce the same results.
+     */
+    @Test
+    public void testDeterministic() {
+        final LossyChannelSimulator.Config config = config();
+        config.loss = 0.05;
+        config.duplicate = 0.05;
+        final LossyChannelSimulator.Report first = new LossyChannelSimulator(config).run();
+        final LossyChannelSimulator.Report second = new LossyChannelSimulator(config).run();
+
+        assertEquals(first.completed, second.completed);
+        assertEquals(first.chunksLost, second.chunksLost);
+        assertEquals(first.peakBufferedBytes, second.peakBufferedBytes);
+        assertArrayEquals(first.latencies, second.latencies, 0);
+    }
+
+}
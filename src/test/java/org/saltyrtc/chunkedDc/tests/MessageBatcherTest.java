@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2016 Threema GmbH / SaltyRTC Contributors
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+
+package org.saltyrtc.chunkedDc.tests;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.saltyrtc.chunkedDc.ChunkerSession;
+import org.saltyrtc.chunkedDc.MessageBatcher;
+import org.saltyrtc.chunkedDc.Unchunker;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class MessageBatcherTest {
+
+    private static byte END = 1;
+    private static byte BATCH_END = 5;
+
+    private final List<byte[]> chunks = new ArrayList<>();
+    private final MessageBatcher.ChunkListener chunkListener = new MessageBatcher.ChunkListener() {
+        @Override
+        public void onChunk(ByteBuffer chunk) {
+            final byte[] data = new byte[chunk.remaining()];
+            chunk.get(data);
+            synchronized (MessageBatcherTest.this.chunks) {
+                MessageBatcherTest.this.chunks.add(data);
+                MessageBatcherTest.this.chunks.notifyAll();
+            }
+        }
+    };
+
+    @Before
+    public void setUp() {
+        this.chunks.clear();
+    }
+
+    @Test
+    public void testBatch() {
+        final MessageBatcher batcher = new MessageBatcher(new ChunkerSession(7, 32), this.chunkListener, null, 0);
+        batcher.send(ByteBuffer.wrap(new byte[] { 1, 2 }));
+        batcher.send(ByteBuffer.wrap(new byte[] { 3 }));
+        assertEquals(0, this.chunks.size());
+        batcher.flush();
+        assertEquals(1, this.chunks.size());
+        assertArrayEquals(
+                new byte[] { BATCH_END, /*Id*/0,0,0,7, /*Serial*/0,0,0,0, 0,2, 1,2, 0,1, 3 },
+                this.chunks.get(0)
+        );
+
+        // Nothing to flush
+        batcher.flush();
+        assertEquals(1, this.chunks.size());
+    }
+
+    /**
+     * A single message is sent as a regular chunk.
+     */
+    @Test
+    public void testSingleMessage() {
+        final MessageBatcher batcher = new MessageBatcher(new ChunkerSession(7, 32), this.chunkListener, null, 0);
+        batcher.send(ByteBuffer.wrap(new byte[] { 1, 2 }));
+        batcher.flush();
+        assertArrayEquals(
+                new byte[] { END, /*Id*/0,0,0,7, /*Serial*/0,0,0,0, 1,2 },
+                this.chunks.get(0)
+        );
+    }
+
+    /**
+     * A batch is sent as soon as the next message doesn't fit, large
+     * messages are chunked as usual and the order is preserved.
+     */
+    @Test
+    public void testFlushBySize() {
+        final Unchunker unchunker = new Unchunker();
+        final List<byte[]> messages = new ArrayList<>();
+        unchunker.onMessage(new Unchunker.MessageListener() {
+            @Override
+            public void onMessage(ByteBuffer message) {
+                final byte[] data = new byte[message.remaining()];
+                message.get(data);
+                messages.add(data);
+            }
+        });
+
+        final MessageBatcher batcher = new MessageBatcher(new ChunkerSession(20), this.chunkListener, null, 0);
+        final List<byte[]> sent = new ArrayList<>();
+        for (int i = 1; i <= 30; i++) {
+            final byte[] message = new byte[i % 7 == 0 ? 40 : i % 5 + 1];
+            message[0] = (byte) i;
+            sent.add(message);
+            batcher.send(ByteBuffer.wrap(message));
+        }
+        batcher.flush();
+        for (byte[] chunk : this.chunks) {
+            unchunker.add(ByteBuffer.wrap(chunk));
+        }
+
+        assertEquals(sent.size(), messages.size());
+        for (int i = 0; i < sent.size(); i++) {
+            assertArrayEquals(sent.get(i), messages.get(i));
+        }
+        assertEquals(0, unchunker.getPendingMessageCount());
+    }
+
+    @Test
+    public void testFlushByLinger() throws InterruptedException {
+        final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+        try {
+            final MessageBatcher batcher = new MessageBatcher(new ChunkerSession(64), this.chunkListener, timer, 10);
+            synchronized (this.chunks) {
+                batcher.send(ByteBuffer.wrap(new byte[] { 1 }));
+                batcher.send(ByteBuffer.wrap(new byte[] { 2 }));
+                final long deadline = System.currentTimeMillis() + 5000;
+                while (this.chunks.isEmpty() && System.currentTimeMillis() < deadline) {
+                    this.chunks.wait(100);
+                }
+            }
+            assertEquals(1, this.chunks.size());
+            assertEquals(BATCH_END, this.chunks.get(0)[0]);
+        } finally {
+            timer.shutdownNow();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmptyMessage() {
+        new MessageBatcher(new ChunkerSession(64), this.chunkListener, null, 0).send(ByteBuffer.allocate(0));
+    }
+
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2016 Threema GmbH / SaltyRTC Contributors
+ *
+ * Licensed under the Apache License, Version 2.0, <see LICENSE-APACHE file>
+ * or the MIT license <see LICENSE-MIT file>, at your option. This file may not be
+ * copied, modified, or distributed except according to those terms.
+ */
+
+package org.saltyrtc.chunkedDc.tests;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.saltyrtc.chunkedDc.BufferPool;
+import org.saltyrtc.chunkedDc.Unchunker;
+import org.saltyrtc.chunkedDc.UnchunkerRegistry;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class UnchunkerRegistryTest {
+
+    private static byte MORE = 0;
+
+    private ScheduledExecutorService timer;
+
+    @Before
+    public void setUp() {
+        this.timer = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        this.timer.shutdownNow();
+    }
+
+    private static ByteBuffer chunk(int id, int serial, int length) {
+        final ByteBuffer buf = ByteBuffer.allocate(9 + length);
+        buf.put(MORE).putInt(id).putInt(serial);
+        buf.position(0);
+        return buf;
+    }
+
+    @Test
+    public void testRegister() {
+        final UnchunkerRegistry<String> registry = new UnchunkerRegistry<>(this.timer, 1000, 1000, 1 << 20, null);
+        final Unchunker a = registry.register("a");
+        assertSame(a, registry.register("a"));
+        assertSame(a, registry.get("a"));
+        assertNotSame(a, registry.register("b"));
+        assertNull(registry.get("c"));
+        assertEquals(2, registry.size());
+        registry.close();
+        assertEquals(0, registry.size());
+    }
+
+    /**
+     * Unregistering a peer drops its incomplete messages.
+     */
+    @Test
+    public void testUnregister() {
+        final BufferPool pool = new BufferPool(1 << 16, 1 << 20);
+        final UnchunkerRegistry<String> registry = new UnchunkerRegistry<>(this.timer, 1000, 1000, 1 << 20, pool);
+        final Unchunker unchunker = registry.register("a");
+        unchunker.add(chunk(0, 0, 100));
+        unchunker.add(chunk(0, 1, 100));
+        assertEquals(1024, registry.getBufferedBytes());
+
+        assertEquals(2, registry.unregister("a"));
+        assertEquals(0, registry.unregister("a"));
+        assertEquals(0, registry.getBufferedBytes());
+        assertEquals(1024, pool.getPooledBytes());
+        registry.close();
+    }
+
+    /**
+     * Peers take memory from the shared budget as they need it.
+     * Registering a peer does not drop messages of other peers.
+     */
+    @Test
+    public void testSharedBudget() {
+        final UnchunkerRegistry<String> registry = new UnchunkerRegistry<>(this.timer, 1000, 1000, 1000, 800, null);
+        final Unchunker a = registry.register("a");
+        a.add(chunk(0, 0, 100));
+        a.add(chunk(0, 3, 100));
+        assertEquals(400, a.getBufferedBytes());
+
+        final Unchunker b = registry.register("b");
+        assertEquals(1, a.getPendingMessageCount());
+        b.add(chunk(0, 0, 100));
+        b.add(chunk(0, 4, 100));
+        assertEquals(900, registry.getBufferedBytes());
+
+        // The global budget is exhausted
+        a.add(chunk(1, 0, 200));
+        assertEquals(1, a.getPendingMessageCount());
+        assertEquals(1, a.getDroppedMessageCount());
+        assertEquals(1, registry.getDroppedMessageCount());
+        assertEquals(900, registry.getBufferedBytes());
+
+        // Memory of unregistered peers is available again, up to the per-peer limit
+        registry.unregister("b");
+        a.add(chunk(2, 0, 500));
+        assertEquals(2, a.getDroppedMessageCount());
+        a.add(chunk(3, 0, 300));
+        assertEquals(2, a.getPendingMessageCount());
+        assertEquals(700, registry.getBufferedBytes());
+        registry.close();
+    }
+
+    /**
+     * Pooled buffers are rounded up before they are taken from the budget.
+     */
+    @Test
+    public void testSharedBudgetBufferPool() {
+        final BufferPool pool = new BufferPool(1 << 20, 1 << 20);
+        final UnchunkerRegistry<String> registry = new UnchunkerRegistry<>(this.timer, 1000, 1000, 100000, pool);
+        final Unchunker a = registry.register("a");
+        a.add(chunk(0, 0, 20000));
+        a.add(chunk(0, 1, 20000));
+        assertEquals(65536, registry.getBufferedBytes());
+
+        // A pooled array for 70000 bytes has 131072 bytes
+        a.add(chunk(1, 0, 70000));
+        assertEquals(1, registry.getDroppedMessageCount());
+        assertEquals(65536, registry.getBufferedBytes());
+        registry.close();
+    }
+
+    /**
+     * Chunks added after unregistering do not take memory from the budget.
+     */
+    @Test
+    public void testAddAfterUnregister() {
+        final UnchunkerRegistry<String> registry = new UnchunkerRegistry<>(this.timer, 1000, 1000, 1000, null);
+        final Unchunker a = registry.register("a");
+        a.add(chunk(0, 0, 100));
+        registry.unregister("a");
+        a.add(chunk(1, 0, 600));
+        assertEquals(0, a.getBufferedBytes());
+        assertEquals(0, a.getPendingMessageCount());
+
+        // The whole budget is available to other peers
+        final Unchunker b = registry.register("a");
+        assertNotSame(a, b);
+        b.add(chunk(0, 0, 1000));
+        assertEquals(1000, registry.getBufferedBytes());
+        registry.close();
+    }
+
+    /**
+     * Message listeners may register and unregister peers.
+     */
+    @Test
+    public void testRegisterFromListener() {
+        final UnchunkerRegistry<String> registry = new UnchunkerRegistry<>(this.timer, 1000, 1000, 1000, null);
+        final Unchunker a = registry.register("a");
+        a.onMessage(new Unchunker.MessageListener() {
+            @Override
+            public void onMessage(ByteBuffer message) {
+                registry.unregister("a");
+                registry.register("b");
+            }
+        });
+        a.add(chunk(0, 0, 100));
+        final ByteBuffer end = chunk(0, 1, 100);
+        end.put(0, (byte) 1);
+        a.add(end);
+
+        assertNull(registry.get("a"));
+        assertNotNull(registry.get("b"));
+        assertEquals(0, registry.getBufferedBytes());
+        registry.close();
+    }
+
+    /**
+     * Incomplete messages of all peers are removed by the shared timer.
+     */
+    @Test
+    public void testSharedGarbageCollection() throws InterruptedException {
+        final UnchunkerRegistry<Integer> registry = new UnchunkerRegistry<>(this.timer, 5, 10, 1 << 20, null);
+        for (int i = 0; i < 10; i++) {
+            registry.register(i).add(chunk(0, 0, 10));
+        }
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (registry.getBufferedBytes() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, registry.getBufferedBytes());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0, registry.get(i).getPendingMessageCount());
+        }
+        registry.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidInterval() {
+        new UnchunkerRegistry<String>(this.timer, 0, 1000, 1000, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidBudget() {
+        new UnchunkerRegistry<String>(this.timer, 1000, 1000, -1, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidPeerBudget() {
+        new UnchunkerRegistry<String>(this.timer, 1000, 1000, 1000, -1, null);
+    }
+
+}
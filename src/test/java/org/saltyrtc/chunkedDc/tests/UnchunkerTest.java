@@ -10,20 +10,34 @@ package org.saltyrtc.chunkedDc.tests;
 
 import org.junit.Assert;
 import org.junit.Test;
+import org.saltyrtc.chunkedDc.BufferPool;
+import org.saltyrtc.chunkedDc.Chunker;
+import org.saltyrtc.chunkedDc.ChunkerSession;
+import org.saltyrtc.chunkedDc.Common;
+import org.saltyrtc.chunkedDc.MissingChunks;
 import org.saltyrtc.chunkedDc.Unchunker;
 
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.util.BitSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class UnchunkerTest {
 
     private static byte MORE = 0;
     private static byte END = 1;
+    private static byte PARITY = 2;
+    private static byte PARITY_END = 3;
 
     private static class LoggingUnchunker {
         public List<byte[]> messages = new LinkedList<>();
@@ -39,6 +53,13 @@ public class UnchunkerTest {
         }
     }
 
+    private static ByteBuffer chunk(byte options, int id, int serial, int length) {
+        final ByteBuffer buf = ByteBuffer.allocate(9 + length);
+        buf.put(options).putInt(id).putInt(serial);
+        buf.position(0);
+        return buf;
+    }
+
     @Test
     public void testRegularUnchunking() {
         final Unchunker unchunker = new Unchunker();
@@ -118,23 +139,60 @@ public class UnchunkerTest {
     }
 
     /**
-     * Add a first empty chunk. This will throw an exception.
+     * Add a first empty chunk that is not the end of the message.
+     * It is rejected, since it would leave the chunk size undefined.
      */
     @Test
     public void testFirstSingleChunk() {
         final Unchunker unchunker = new Unchunker();
         final LoggingUnchunker logger = new LoggingUnchunker(unchunker);
 
-        unchunker.add(ByteBuffer.wrap(new byte[] { MORE, 0,0,0,0, 0,0,0,0 }));
-        unchunker.add(ByteBuffer.wrap(new byte[] { MORE, 0,0,0,0, 0,0,0,1, 1,2 }));
         try {
-            unchunker.add(ByteBuffer.wrap(new byte[] { END, 0,0,0,0, 0,0,0,2, 3 }));
-            Assert.fail("No BufferOverflowException thrown");
-        } catch (BufferOverflowException e) {
-            // expected
+            unchunker.add(ByteBuffer.wrap(new byte[] { MORE, 0,0,0,0, 0,0,0,0 }));
+            Assert.fail("No IllegalArgumentException thrown");
+        } catch (IllegalArgumentException e) {
+            assertEquals("Invalid chunk: Empty chunk before end of message", e.getMessage());
         }
 
         assertEquals(0, logger.messages.size());
+        assertEquals(0, unchunker.getPendingMessageCount());
+    }
+
+    /**
+     * A non-end chunk smaller than the previous chunks is invalid.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testSmallerChunk() {
+        final Unchunker unchunker = new Unchunker();
+        unchunker.add(ByteBuffer.wrap(new byte[] { MORE, 0,0,0,0, 0,0,0,0, 1,2 }));
+        unchunker.add(ByteBuffer.wrap(new byte[] { MORE, 0,0,0,0, 0,0,0,1, 3 }));
+    }
+
+    /**
+     * A chunk with a serial after the end chunk is invalid.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testChunkAfterEnd() {
+        final Unchunker unchunker = new Unchunker();
+        unchunker.add(ByteBuffer.wrap(new byte[] { END,  0,0,0,0, 0,0,0,1, 3 }));
+        unchunker.add(ByteBuffer.wrap(new byte[] { MORE, 0,0,0,0, 0,0,0,2, 1,2 }));
+    }
+
+    /**
+     * The end chunk may arrive first, before the chunk size is known.
+     */
+    @Test
+    public void testEndFirst() {
+        final Unchunker unchunker = new Unchunker();
+        final LoggingUnchunker logger = new LoggingUnchunker(unchunker);
+
+        unchunker.add(ByteBuffer.wrap(new byte[] { END,  0,0,0,0, 0,0,0,3, 7 }));
+        unchunker.add(ByteBuffer.wrap(new byte[] { MORE, 0,0,0,0, 0,0,0,1, 3,4 }));
+        unchunker.add(ByteBuffer.wrap(new byte[] { MORE, 0,0,0,0, 0,0,0,2, 5,6 }));
+        unchunker.add(ByteBuffer.wrap(new byte[] { MORE, 0,0,0,0, 0,0,0,0, 1,2 }));
+
+        assertEquals(1, logger.messages.size());
+        assertArrayEquals(new byte[] { 1,2,3,4,5,6,7 }, logger.messages.get(0));
     }
 
     /**
@@ -209,4 +267,747 @@ public class UnchunkerTest {
         assertEquals(0, unchunker.gc(10));
     }
 
+    /**
+     * Late chunks of a completed message must not start a new message.
+     */
+    @Test
+    public void testLateChunkAfterCompletion() {
+        final Unchunker unchunker = new Unchunker();
+        final LoggingUnchunker logger = new LoggingUnchunker(unchunker);
+
+        unchunker.add(ByteBuffer.wrap(new byte[] { MORE, 0,0,0,0, 0,0,0,0, 1,2 }));
+        unchunker.add(ByteBuffer.wrap(new byte[] { END,  0,0,0,0, 0,0,0,1, 3,4 }));
+        unchunker.add(ByteBuffer.wrap(new byte[] { MORE, 0,0,0,0, 0,0,0,0, 1,2 }));
+        unchunker.add(ByteBuffer.wrap(new byte[] { END,  0,0,0,1, 0,0,0,0, 5 }));
+        unchunker.add(ByteBuffer.wrap(new byte[] { END,  0,0,0,1, 0,0,0,0, 5 }));
+
+        assertEquals(2, logger.messages.size());
+        assertEquals(0, unchunker.gc(-1));
+    }
+
+    /**
+     * Ids that fell out of the completed id window are accepted again.
+     */
+    @Test
+    public void testCompletedIdWindow() {
+        final Unchunker unchunker = new Unchunker(64);
+        final LoggingUnchunker logger = new LoggingUnchunker(unchunker);
+
+        unchunker.add(ByteBuffer.wrap(new byte[] { END, 0,0,0,0, 0,0,0,0, 1 }));
+        unchunker.add(ByteBuffer.wrap(new byte[] { END, 0,0,0,63, 0,0,0,0, 2 }));
+        unchunker.add(ByteBuffer.wrap(new byte[] { END, 0,0,0,0, 0,0,0,0, 3 }));
+        assertEquals(2, logger.messages.size());
+
+        unchunker.add(ByteBuffer.wrap(new byte[] { END, 0,0,0,64, 0,0,0,0, 4 }));
+        unchunker.add(ByteBuffer.wrap(new byte[] { END, 0,0,0,0, 0,0,0,0, 5 }));
+        assertEquals(4, logger.messages.size());
+        assertArrayEquals(new byte[] { 5 }, logger.messages.get(3));
+    }
+
+    /**
+     * The completed id window keeps working when message ids wrap around.
+     */
+    @Test
+    public void testCompletedIdWindowWraparound() {
+        final Unchunker unchunker = new Unchunker(64);
+        final LoggingUnchunker logger = new LoggingUnchunker(unchunker);
+
+        unchunker.add(ByteBuffer.wrap(new byte[] { END, -1,-1,-1,-1, 0,0,0,0, 1 }));
+        unchunker.add(ByteBuffer.wrap(new byte[] { END, 0,0,0,0, 0,0,0,0, 2 }));
+        unchunker.add(ByteBuffer.wrap(new byte[] { END, -1,-1,-1,-1, 0,0,0,0, 3 }));
+        unchunker.add(ByteBuffer.wrap(new byte[] { END, 0,0,0,0, 0,0,0,0, 4 }));
+
+        assertEquals(2, logger.messages.size());
+        assertArrayEquals(new byte[] { 2 }, logger.messages.get(1));
+    }
+
+    /**
+     * Ids on both sides of the wraparound are tracked separately, even if
+     * the window size does not divide 2**32.
+     */
+    @Test
+    public void testCompletedIdWindowWraparoundUnevenSize() {
+        final Unchunker unchunker = new Unchunker(192);
+        final LoggingUnchunker logger = new LoggingUnchunker(unchunker);
+
+        unchunker.add(ByteBuffer.wrap(new byte[] { END,  -1,-1,-1,-16, 0,0,0,0, 1 }));
+        unchunker.add(ByteBuffer.wrap(new byte[] { MORE, -1,-1,-1,-15, 0,0,0,0, 2 }));
+        unchunker.add(ByteBuffer.wrap(new byte[] { END,  0,0,0,49, 0,0,0,0, 3 }));
+        unchunker.add(ByteBuffer.wrap(new byte[] { END,  -1,-1,-1,-15, 0,0,0,1, 4 }));
+
+        assertEquals(3, logger.messages.size());
+        assertArrayEquals(new byte[] { 2, 4 }, logger.messages.get(2));
+        assertEquals(0, unchunker.getPendingMessageCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCompletedIdWindowTooLarge() {
+        new Unchunker((1 << 30) + 1);
+    }
+
+    /**
+     * Without a completed id window, ids may be reused immediately.
+     */
+    @Test
+    public void testCompletedIdWindowDisabled() {
+        final Unchunker unchunker = new Unchunker(0);
+        final LoggingUnchunker logger = new LoggingUnchunker(unchunker);
+
+        unchunker.add(ByteBuffer.wrap(new byte[] { END, 0,0,0,0, 0,0,0,0, 1 }));
+        unchunker.add(ByteBuffer.wrap(new byte[] { END, 0,0,0,0, 0,0,0,0, 2 }));
+
+        assertEquals(2, logger.messages.size());
+    }
+
+    /**
+     * Without the completed id window, late parity chunks of completed
+     * messages neither deliver the message again nor leave it pending.
+     */
+    @Test
+    public void testParityWithoutCompletedIdWindow() {
+        final Unchunker unchunker = new Unchunker(0);
+        final LoggingUnchunker logger = new LoggingUnchunker(unchunker);
+        final int[][] messages = { { 3, 4 }, { 9 * 2, 8 }, { 8 * 2, 4 } };
+        for (int i = 0; i < messages.length; i++) {
+            final byte[] data = new byte[messages[i][0]];
+            final Chunker chunker = new Chunker(i, ByteBuffer.wrap(data), Common.HEADER_LENGTH + 8 + 2, messages[i][1]);
+            while (chunker.hasNext()) {
+                unchunker.add(chunker.next());
+            }
+            assertEquals(i + 1, logger.messages.size());
+            assertEquals(0, unchunker.getPendingMessageCount());
+        }
+
+        // Parity still restores lost chunks of pending messages
+        final byte[] data = { 1, 2, 3, 4, 5 };
+        final Chunker chunker = new Chunker(7, ByteBuffer.wrap(data), Common.HEADER_LENGTH + 8 + 2, 4);
+        chunker.next();
+        while (chunker.hasNext()) {
+            unchunker.add(chunker.next());
+        }
+        assertEquals(4, logger.messages.size());
+        assertArrayEquals(data, logger.messages.get(3));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeCompletedIdWindow() {
+        new Unchunker(-1);
+    }
+
+    /**
+     * Copies of large message buffers run on the configured pool.
+     */
+    @Test
+    public void testParallelCopy() {
+        final AtomicInteger workers = new AtomicInteger();
+        final ForkJoinPool pool = new ForkJoinPool(4, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                workers.incrementAndGet();
+                return ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            }
+        }, null, false);
+        try {
+            final Unchunker unchunker = new Unchunker();
+            final LoggingUnchunker logger = new LoggingUnchunker(unchunker);
+            unchunker.setParallelCopy(pool, 16);
+
+            final byte[] data = new byte[1000];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) i;
+            }
+            final Chunker chunker = new Chunker(7, ByteBuffer.wrap(data), Common.HEADER_LENGTH + 3);
+            while (chunker.hasNext()) {
+                unchunker.add(chunker.next());
+            }
+
+            assertEquals(1, logger.messages.size());
+            assertArrayEquals(data, logger.messages.get(0));
+            assertTrue(workers.get() > 0);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Below the threshold, buffers are copied without the pool.
+     */
+    @Test
+    public void testParallelCopyThreshold() {
+        final AtomicInteger workers = new AtomicInteger();
+        final ForkJoinPool pool = new ForkJoinPool(4, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                workers.incrementAndGet();
+                return ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            }
+        }, null, false);
+        try {
+            final Unchunker unchunker = new Unchunker();
+            final LoggingUnchunker logger = new LoggingUnchunker(unchunker);
+            unchunker.setParallelCopy(pool, 1 << 20);
+
+            final Chunker chunker = new Chunker(7, ByteBuffer.wrap(new byte[1000]), Common.HEADER_LENGTH + 3);
+            while (chunker.hasNext()) {
+                unchunker.add(chunker.next());
+            }
+
+            assertEquals(1, logger.messages.size());
+            assertEquals(0, workers.get());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * A chunk larger than the first one fails with a parallel copy as well.
+     */
+    @Test(expected = BufferOverflowException.class)
+    public void testParallelCopyOverflow() {
+        final ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            final Unchunker unchunker = new Unchunker();
+            unchunker.setParallelCopy(pool, 0);
+            unchunker.add(ByteBuffer.wrap(new byte[] { MORE, 0,0,0,0, 0,0,0,0, 1 }));
+            unchunker.add(ByteBuffer.wrap(new byte[] { END,  0,0,0,0, 0,0,0,1, 2,3 }));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParallelCopyNegativeThreshold() {
+        new Unchunker().setParallelCopy(null, -1);
+    }
+
+    /**
+     * Messages that would exceed the memory limit are dropped.
+     */
+    @Test
+    public void testMaxBufferedBytes() {
+        final Unchunker unchunker = new Unchunker();
+        final LoggingUnchunker logger = new LoggingUnchunker(unchunker);
+        unchunker.setMaxBufferedBytes(6);
+
+        unchunker.add(ByteBuffer.wrap(new byte[] { MORE, 0,0,0,0, 0,0,0,0, 1,2 }));
+        unchunker.add(ByteBuffer.wrap(new byte[] { MORE, 0,0,0,0, 0,0,0,1, 3,4 }));
+        unchunker.add(ByteBuffer.wrap(new byte[] { MORE, 0,0,0,1, 0,0,0,3, 7,8 }));
+        assertEquals(4, unchunker.getBufferedBytes());
+        assertEquals(1, unchunker.getPendingMessageCount());
+
+        // Message 0 needs to grow to 8 bytes and is dropped
+        unchunker.add(ByteBuffer.wrap(new byte[] { MORE, 0,0,0,0, 0,0,0,2, 5,6 }));
+        assertEquals(0, unchunker.getBufferedBytes());
+        assertEquals(0, unchunker.getPendingMessageCount());
+        assertEquals(2, unchunker.getDroppedMessageCount());
+
+        unchunker.add(ByteBuffer.wrap(new byte[] { MORE, 0,0,0,2, 0,0,0,0, 1,2 }));
+        unchunker.add(ByteBuffer.wrap(new byte[] { END,  0,0,0,2, 0,0,0,1, 3 }));
+        assertEquals(1, logger.messages.size());
+        assertArrayEquals(new byte[] { 1,2,3 }, logger.messages.get(0));
+    }
+
+    /**
+     * Message buffers are taken from and returned to the pool.
+     */
+    @Test
+    public void testBufferPool() {
+        final BufferPool pool = new BufferPool(1 << 16, 1 << 20);
+        final Unchunker unchunker = new Unchunker();
+        final LoggingUnchunker logger = new LoggingUnchunker(unchunker);
+        unchunker.setBufferPool(pool);
+
+        unchunker.add(ByteBuffer.wrap(new byte[] { MORE, 0,0,0,0, 0,0,0,0, 1,2 }));
+        unchunker.add(ByteBuffer.wrap(new byte[] { END,  0,0,0,0, 0,0,0,1, 3 }));
+        assertEquals(1, logger.messages.size());
+        assertArrayEquals(new byte[] { 1,2,3 }, logger.messages.get(0));
+        assertEquals(0, unchunker.getBufferedBytes());
+        assertEquals(1024, pool.getPooledBytes());
+
+        unchunker.add(ByteBuffer.wrap(new byte[] { MORE, 0,0,0,1, 0,0,0,0, 4,5 }));
+        assertEquals(0, pool.getPooledBytes());
+        assertEquals(1, unchunker.clear());
+        assertEquals(1024, pool.getPooledBytes());
+    }
+
+    /**
+     * Lowering the limit while a message is being delivered only drops
+     * incomplete messages.
+     */
+    @Test
+    public void testMaxBufferedBytesInListener() {
+        final Unchunker unchunker = new Unchunker();
+        unchunker.onMessage(new Unchunker.MessageListener() {
+            @Override
+            public void onMessage(ByteBuffer message) {
+                unchunker.setMaxBufferedBytes(0);
+            }
+        });
+        unchunker.add(ByteBuffer.wrap(new byte[] { MORE, 0,0,0,0, 0,0,0,0, 1,2 }));
+        unchunker.add(ByteBuffer.wrap(new byte[] { MORE, 0,0,0,1, 0,0,0,0, 1,2 }));
+        unchunker.add(ByteBuffer.wrap(new byte[] { END,  0,0,0,0, 0,0,0,1, 3 }));
+        assertEquals(0, unchunker.getPendingMessageCount());
+        assertEquals(0, unchunker.getBufferedBytes());
+        assertEquals(1, unchunker.getDroppedMessageCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeMaxBufferedBytes() {
+        new Unchunker().setMaxBufferedBytes(-1);
+    }
+
+    /**
+     * Chunks far behind the start of a message may not grow its buffer
+     * beyond the maximum message length.
+     */
+    @Test
+    public void testMaxMessageLength() {
+        final Unchunker unchunker = new Unchunker();
+        unchunker.add(chunk(MORE, 0, 0, 1024));
+        try {
+            unchunker.add(chunk(MORE, 0, 1000000, 1024));
+            Assert.fail("No BufferOverflowException thrown");
+        } catch (BufferOverflowException e) {
+            // expected
+        }
+        assertEquals(1024, unchunker.getBufferedBytes());
+
+        unchunker.setMaxMessageLength(3000);
+        unchunker.add(chunk(MORE, 0, 1, 1024));
+        try {
+            unchunker.add(chunk(MORE, 0, 2, 1024));
+            Assert.fail("No BufferOverflowException thrown");
+        } catch (BufferOverflowException e) {
+            // expected
+        }
+        assertEquals(2048, unchunker.getBufferedBytes());
+    }
+
+    /**
+     * An end chunk that arrives before the chunk size is known may not
+     * claim a serial that no message within the maximum length can have.
+     */
+    @Test
+    public void testPendingEndSerial() {
+        final Unchunker unchunker = new Unchunker();
+        try {
+            unchunker.add(chunk(END, 0, 0xFFFFFFFF, 1));
+            Assert.fail("No BufferOverflowException thrown");
+        } catch (BufferOverflowException e) {
+            // expected
+        }
+        assertEquals(0, unchunker.getPendingMessageCount());
+        assertEquals(0, unchunker.getBufferedBytes());
+
+        // Accepted, but nothing is allocated for the serials in between
+        unchunker.add(chunk(END, 1, 1000000, 1));
+        assertEquals(1, unchunker.getPendingMessageCount());
+        assertEquals(1, unchunker.getBufferedBytes());
+    }
+
+    /**
+     * The bitmap of received chunks counts towards the buffered bytes.
+     */
+    @Test
+    public void testBitmapBufferedBytes() {
+        final Unchunker unchunker = new Unchunker();
+        unchunker.add(chunk(MORE, 0, 0, 1));
+        unchunker.add(chunk(MORE, 0, 100000, 1));
+        assertEquals(100001 + 8 * (100000 / 64), unchunker.getBufferedBytes());
+
+        assertEquals(2, unchunker.clear());
+        assertEquals(0, unchunker.getBufferedBytes());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeMaxMessageLength() {
+        new Unchunker().setMaxMessageLength(-1);
+    }
+
+    /**
+     * A lost chunk is restored from the parity chunk of its group.
+     */
+    @Test
+    public void testParityRecovery() {
+        final Unchunker unchunker = new Unchunker();
+        final LoggingUnchunker logger = new LoggingUnchunker(unchunker);
+
+        unchunker.add(ByteBuffer.wrap(new byte[] { MORE, 0,0,0,0, 0,0,0,0, 1,2 }));
+        // Serial 1 is lost
+        unchunker.add(ByteBuffer.wrap(new byte[] { PARITY, 0,0,0,0, 0,0,0,0, 0,0,0,2, 0,0,0,0, 1^3,2^4 }));
+        unchunker.add(ByteBuffer.wrap(new byte[] { END, 0,0,0,0, 0,0,0,2, 5 }));
+
+        assertEquals(1, logger.messages.size());
+        assertArrayEquals(new byte[] { 1,2,3,4,5 }, logger.messages.get(0));
+        assertEquals(0, unchunker.getBufferedBytes());
+    }
+
+    /**
+     * A lost end chunk is restored including its length.
+     */
+    @Test
+    public void testParityRecoveryEnd() {
+        final Unchunker unchunker = new Unchunker();
+        final LoggingUnchunker logger = new LoggingUnchunker(unchunker);
+
+        unchunker.add(ByteBuffer.wrap(new byte[] { PARITY_END, 0,0,0,0, 0,0,0,0, 0,0,0,2, 0,0,0,3, 1^5,2 }));
+        unchunker.add(ByteBuffer.wrap(new byte[] { MORE, 0,0,0,0, 0,0,0,0, 1,2 }));
+        // Serial 1 (end) is lost
+
+        assertEquals(1, logger.messages.size());
+        assertArrayEquals(new byte[] { 1,2,5 }, logger.messages.get(0));
+    }
+
+    /**
+     * A lost single chunk message is restored from its parity chunk.
+     */
+    @Test
+    public void testParityRecoverySingleChunk() {
+        final Unchunker unchunker = new Unchunker();
+        final LoggingUnchunker logger = new LoggingUnchunker(unchunker);
+
+        unchunker.add(ByteBuffer.wrap(new byte[] { PARITY_END, 0,0,0,0, 0,0,0,0, 0,0,0,1, 0,0,0,3, 7,8,9 }));
+
+        assertEquals(1, logger.messages.size());
+        assertArrayEquals(new byte[] { 7,8,9 }, logger.messages.get(0));
+    }
+
+    /**
+     * Two lost chunks in the same group cannot be restored.
+     */
+    @Test
+    public void testParityTwoLost() {
+        final Unchunker unchunker = new Unchunker();
+        final LoggingUnchunker logger = new LoggingUnchunker(unchunker);
+
+        final ByteBuffer buf = ByteBuffer.wrap(new byte[] { 1,2,3,4,5,6,7 });
+        final Chunker chunker = new Chunker(0, buf, Common.HEADER_LENGTH + 8 + 2, 3);
+        chunker.next();
+        chunker.next();
+        while (chunker.hasNext()) {
+            unchunker.add(chunker.next());
+        }
+
+        assertEquals(0, logger.messages.size());
+        assertEquals(1, unchunker.getPendingMessageCount());
+    }
+
+    /**
+     * Messages with parity chunks survive any single loss per group.
+     */
+    @Test
+    public void testParityRoundtrip() {
+        final byte[] data = new byte[100];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 7);
+        }
+        for (int lost = 0; lost < 4; lost++) {
+            final Unchunker unchunker = new Unchunker();
+            final LoggingUnchunker logger = new LoggingUnchunker(unchunker);
+            final Chunker chunker = new Chunker(lost, ByteBuffer.wrap(data), Common.HEADER_LENGTH + 8 + 7, 3);
+            int index = 0;
+            while (chunker.hasNext()) {
+                final ByteBuffer chunk = chunker.next();
+                // Drop one chunk (data or parity) of each group of 3 + 1
+                if (index++ % 4 != lost) {
+                    unchunker.add(chunk);
+                }
+            }
+            assertEquals(1, logger.messages.size());
+            assertArrayEquals(data, logger.messages.get(0));
+            assertEquals(0, unchunker.getPendingMessageCount());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParityTooShort() {
+        new Unchunker().add(ByteBuffer.wrap(new byte[] { PARITY, 0,0,0,0, 0,0,0,0, 0,0,0,1 }));
+    }
+
+    @Test
+    public void testMissingChunks() {
+        final Unchunker unchunker = new Unchunker();
+        unchunker.add(ByteBuffer.wrap(new byte[] { MORE, 0,0,0,1, 0,0,0,0, 1,2 }));
+        unchunker.add(ByteBuffer.wrap(new byte[] { MORE, 0,0,0,1, 0,0,0,3, 7,8 }));
+
+        MissingChunks missing = unchunker.getMissingChunks(1);
+        assertEquals(1, missing.getId());
+        assertEquals(3, missing.getHighestSerial());
+        assertFalse(missing.isEndKnown());
+        assertEquals("{1, 2}", missing.getMissingSerials().toString());
+
+        unchunker.add(ByteBuffer.wrap(new byte[] { END, 0,0,0,1, 0,0,0,5, 11 }));
+        unchunker.add(ByteBuffer.wrap(new byte[] { MORE, 0,0,0,1, 0,0,0,2, 5,6 }));
+        missing = unchunker.getMissingChunks(1);
+        assertEquals(5, missing.getHighestSerial());
+        assertTrue(missing.isEndKnown());
+        assertEquals("{1, 4}", missing.getMissingSerials().toString());
+
+        assertArrayEquals(new long[] { 1 }, unchunker.getPendingIds());
+        assertNull(unchunker.getMissingChunks(2));
+    }
+
+    /**
+     * Serials beyond the maximum message length are rejected, so the
+     * missing serials of an accepted message always fit into a bit set.
+     */
+    @Test
+    public void testMissingChunksLargeSerial() throws InterruptedException {
+        final Unchunker unchunker = new Unchunker();
+        final List<MissingChunks> stalled = new LinkedList<>();
+        unchunker.onStall(new Unchunker.StallListener() {
+            @Override
+            public void onStall(MissingChunks missing) {
+                stalled.add(missing);
+            }
+        });
+        unchunker.setMaxMessageLength(Integer.MAX_VALUE - 8);
+        for (int serial : new int[] { 0xFFFFFFFF, Integer.MAX_VALUE, Integer.MAX_VALUE - 8 }) {
+            try {
+                unchunker.add(chunk(END, 0, serial, 1));
+                Assert.fail("No BufferOverflowException thrown");
+            } catch (BufferOverflowException e) {
+                // expected
+            }
+        }
+        unchunker.add(chunk(END, 1, 10000000, 1));
+        unchunker.add(chunk(MORE, 2, 0, 1));
+
+        Thread.sleep(5);
+        assertEquals(2, unchunker.checkStalled(1));
+        assertEquals(2, stalled.size());
+        final MissingChunks missing = unchunker.getMissingChunks(1);
+        assertEquals(10000000, missing.getHighestSerial());
+        assertTrue(missing.isEndKnown());
+        assertEquals(10000000, missing.getMissingSerials().cardinality());
+        assertFalse(missing.getMissingSerials().get(10000000));
+    }
+
+    /**
+     * Retransmit the chunks reported by the stall listener.
+     */
+    @Test
+    public void testStallRetransmission() throws InterruptedException {
+        final ByteBuffer buf = ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9 });
+        final Chunker chunker = new Chunker(7, buf, Common.HEADER_LENGTH + 2);
+        final Unchunker unchunker = new Unchunker();
+        final LoggingUnchunker logger = new LoggingUnchunker(unchunker);
+        final List<MissingChunks> stalled = new LinkedList<>();
+        unchunker.onStall(new Unchunker.StallListener() {
+            @Override
+            public void onStall(MissingChunks missing) {
+                stalled.add(missing);
+            }
+        });
+
+        // Lose chunks 1 and 2
+        for (int serial = 0; chunker.hasNext(); serial++) {
+            final ByteBuffer chunk = chunker.next();
+            if (serial != 1 && serial != 2) {
+                unchunker.add(chunk);
+            }
+        }
+        assertEquals(0, unchunker.checkStalled(1000));
+        Thread.sleep(20);
+        assertEquals(1, unchunker.checkStalled(10));
+        assertEquals(0, unchunker.checkStalled(10));
+        assertEquals(1, stalled.size());
+
+        final BitSet serials = stalled.get(0).getMissingSerials();
+        for (int serial = serials.nextSetBit(0); serial >= 0; serial = serials.nextSetBit(serial + 1)) {
+            unchunker.add(chunker.getChunk(serial));
+        }
+        assertEquals(1, logger.messages.size());
+        assertArrayEquals(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9 }, logger.messages.get(0));
+        assertEquals(0, unchunker.getPendingMessageCount());
+    }
+
+    /**
+     * Resume a transfer after a reconnect: Restore the checkpoint and
+     * add the missing chunks only.
+     */
+    @Test
+    public void testCheckpointRestore() {
+        final byte[] data = new byte[1000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        final Chunker chunker = new Chunker(3, ByteBuffer.wrap(data), 109, 4);
+        final List<ByteBuffer> chunks = new LinkedList<>();
+        while (chunker.hasNext()) {
+            chunks.add(chunker.next());
+        }
+
+        // Receive every chunk but two of the first parity group, the end
+        // chunk and a partial message without the end chunk
+        final Unchunker unchunker = new Unchunker();
+        for (int i = 0; i < chunks.size(); i++) {
+            if (i != 0 && i != 1 && i != chunks.size() - 2) {
+                unchunker.add(chunks.get(i).duplicate());
+            }
+        }
+        unchunker.add(ByteBuffer.wrap(new byte[] { MORE, 0,0,0,4, 0,0,0,1, 1,2 }));
+        unchunker.add(ByteBuffer.wrap(new byte[] { END, 0,0,0,5, 0,0,0,1, 3 }));
+        final MissingChunks before = unchunker.getMissingChunks(3);
+        final ByteBuffer checkpoint = unchunker.checkpoint();
+
+        // Restore into a new instance
+        final Unchunker restored = new Unchunker();
+        final LoggingUnchunker logger = new LoggingUnchunker(restored);
+        assertEquals(3, restored.restore(checkpoint));
+        assertFalse(checkpoint.hasRemaining());
+        assertEquals(3, restored.getPendingMessageCount());
+        assertEquals(before.getMissingSerials(), restored.getMissingChunks(3).getMissingSerials());
+        assertTrue(restored.getMissingChunks(3).isEndKnown());
+        assertEquals("{0}", restored.getMissingChunks(4).getMissingSerials().toString());
+
+        // Restoring again skips pending messages
+        assertEquals(0, restored.restore(unchunker.checkpoint()));
+
+        // Missing chunk 0 is enough, chunk 1 is restored from parity
+        restored.add(chunker.getChunk(0));
+        assertEquals(1, logger.messages.size());
+        assertArrayEquals(data, logger.messages.get(0));
+        restored.add(ByteBuffer.wrap(new byte[] { MORE, 0,0,0,5, 0,0,0,0, 1,2 }));
+        assertEquals(2, logger.messages.size());
+        assertArrayEquals(new byte[] { 1, 2, 3 }, logger.messages.get(1));
+        assertEquals(1, restored.getPendingMessageCount());
+    }
+
+    @Test
+    public void testCheckpointEmpty() {
+        final Unchunker unchunker = new Unchunker();
+        final ByteBuffer checkpoint = unchunker.checkpoint();
+        assertEquals(9, checkpoint.remaining());
+        assertEquals(0, new Unchunker().restore(checkpoint));
+    }
+
+    /**
+     * Late chunks of messages completed before the checkpoint are dropped
+     * by the instance the checkpoint is restored into.
+     */
+    @Test
+    public void testCheckpointCompletedIds() {
+        final Unchunker unchunker = new Unchunker();
+        unchunker.add(ByteBuffer.wrap(new byte[] { MORE, 0,0,0,1, 0,0,0,0, 1,2 }));
+        unchunker.add(ByteBuffer.wrap(new byte[] { END,  0,0,0,1, 0,0,0,1, 3 }));
+        unchunker.add(ByteBuffer.wrap(new byte[] { END,  0,0,0,2, 0,0,0,0, 4 }));
+        unchunker.add(ByteBuffer.wrap(new byte[] { MORE, 0,0,0,3, 0,0,0,0, 5,6 }));
+        final ByteBuffer checkpoint = unchunker.checkpoint();
+
+        final Unchunker restored = new Unchunker(64);
+        final LoggingUnchunker logger = new LoggingUnchunker(restored);
+        assertEquals(1, restored.restore(checkpoint));
+        assertArrayEquals(new long[] { 3 }, restored.getPendingIds());
+
+        // Messages 1 and 2 were completed before the checkpoint
+        restored.add(ByteBuffer.wrap(new byte[] { MORE, 0,0,0,1, 0,0,0,0, 1,2 }));
+        restored.add(ByteBuffer.wrap(new byte[] { END,  0,0,0,2, 0,0,0,0, 4 }));
+        assertEquals(0, logger.messages.size());
+        assertEquals(1, restored.getPendingMessageCount());
+
+        // Without a window, the checkpoint still restores
+        final Unchunker disabled = new Unchunker(0);
+        assertEquals(1, disabled.restore(unchunker.checkpoint()));
+        assertEquals(1, new Unchunker().restore(disabled.checkpoint()));
+    }
+
+    /**
+     * A truncated checkpoint does not restore anything.
+     */
+    @Test
+    public void testCheckpointTruncated() {
+        final Unchunker unchunker = new Unchunker();
+        unchunker.add(ByteBuffer.wrap(new byte[] { MORE, 0,0,0,1, 0,0,0,0, 1,2 }));
+        unchunker.add(ByteBuffer.wrap(new byte[] { MORE, 0,0,0,2, 0,0,0,0, 1,2 }));
+        final ByteBuffer checkpoint = unchunker.checkpoint();
+        checkpoint.limit(checkpoint.limit() - 1);
+        final Unchunker restored = new Unchunker();
+        try {
+            restored.restore(checkpoint);
+            Assert.fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        assertEquals(0, restored.getPendingMessageCount());
+        assertEquals(0, restored.getBufferedBytes());
+    }
+
+    /**
+     * After a reconnect, the sender continues at the next id of its previous
+     * session. Restarting at id 0 would reuse completed ids.
+     */
+    @Test
+    public void testCheckpointResumeSession() {
+        final int chunkSize = Common.HEADER_LENGTH + 2;
+        final ChunkerSession before = new ChunkerSession(chunkSize);
+        final Unchunker unchunker = new Unchunker();
+        for (int i = 0; i < 3; i++) {
+            before.begin(ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+            while (before.hasNext()) {
+                unchunker.add(before.next());
+            }
+        }
+        final ByteBuffer checkpoint = unchunker.checkpoint();
+
+        final Unchunker restored = new Unchunker();
+        final LoggingUnchunker logger = new LoggingUnchunker(restored);
+        restored.restore(checkpoint);
+
+        // Restarting at id 0 reuses a completed id, the message is dropped
+        final ChunkerSession restarted = new ChunkerSession(chunkSize);
+        restarted.begin(ByteBuffer.wrap(new byte[] { 4, 5, 6 }));
+        while (restarted.hasNext()) {
+            restored.add(restarted.next());
+        }
+        assertEquals(0, logger.messages.size());
+
+        // Continuing at the next id delivers the message
+        final ChunkerSession resumed = new ChunkerSession(before.getNextId(), chunkSize);
+        assertEquals(3, resumed.begin(ByteBuffer.wrap(new byte[] { 4, 5, 6 })));
+        while (resumed.hasNext()) {
+            restored.add(resumed.next());
+        }
+        assertEquals(1, logger.messages.size());
+        assertArrayEquals(new byte[] { 4, 5, 6 }, logger.messages.get(0));
+        assertEquals(0, restored.getPendingMessageCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCheckpointUnknownVersion() {
+        new Unchunker().restore(ByteBuffer.wrap(new byte[] { 2, 0,0,0,0 }));
+    }
+
+    @Test
+    public void testBatch() {
+        final Unchunker unchunker = new Unchunker();
+        final LoggingUnchunker logger = new LoggingUnchunker(unchunker);
+        unchunker.add(ByteBuffer.wrap(new byte[] { 5, 0,0,0,0, 0,0,0,0, 0,2, 1,2, 0,1, 3, 0,0 }));
+        assertEquals(3, logger.messages.size());
+        assertArrayEquals(new byte[] { 1, 2 }, logger.messages.get(0));
+        assertArrayEquals(new byte[] { 3 }, logger.messages.get(1));
+        assertArrayEquals(new byte[] {}, logger.messages.get(2));
+    }
+
+    /**
+     * A truncated batch is rejected without delivering any message.
+     */
+    @Test
+    public void testBatchTruncated() {
+        final Unchunker unchunker = new Unchunker();
+        final LoggingUnchunker logger = new LoggingUnchunker(unchunker);
+        try {
+            unchunker.add(ByteBuffer.wrap(new byte[] { 5, 0,0,0,0, 0,0,0,0, 0,2, 1,2, 0,2, 3 }));
+            Assert.fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        assertEquals(0, logger.messages.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBatchMultipleChunks() {
+        new Unchunker().add(ByteBuffer.wrap(new byte[] { 4, 0,0,0,0, 0,0,0,0, 0,1, 1 }));
+    }
+
 }